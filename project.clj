@@ -3,11 +3,12 @@
   :url "https://github.com/dwysocki/mini-java"
   :license {:name "MIT License"
             :url "http://opensource.org/licenses/MIT"}
-  :dependencies [[org.clojure/clojure     "1.6.0"]
-                 [org.antlr/antlr4        "4.3"  ]
-                 [org.ow2.asm/asm         "5.0.3"]
-                 [org.ow2.asm/asm-commons "5.0.3"]
-                 [org.clojure/tools.cli   "0.3.1"]]
+  :dependencies [[org.clojure/clojure     "1.10.3"]
+                 [org.antlr/antlr4        "4.3"   ]
+                 [org.ow2.asm/asm         "5.0.3" ]
+                 [org.ow2.asm/asm-commons "5.0.3" ]
+                 [org.clojure/tools.cli   "0.3.1" ]
+                 [org.clojure/data.json   "0.2.5" ]]
   :plugins [[lein-antlr4 "0.1.0-SNAPSHOT"]]
   :hooks [leiningen.antlr4]
   :antlr-src-dir  "src/antlr"
@@ -16,4 +17,11 @@
   :aot [mini-java.ErrorHandler
         mini-java.ErrorListener]
   :uberjar-name "mini-javac.jar"
-  :main mini-java.core)
+  :main mini-java.core
+  ;; lein with-profile +startup uberjar
+  ;; builds target/startup/mini-javac.jar, which loads no Clojure source at
+  ;; all, with var calls linked directly, on the same Clojure as every other
+  ;; build. Its bytecode can be stored in an AppCDS archive.
+  :profiles {:startup {:aot :all
+                       :jvm-opts ["-Dclojure.compiler.direct-linking=true"]
+                       :target-path "target/startup"}})
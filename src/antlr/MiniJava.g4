@@ -4,51 +4,88 @@ grammar MiniJava;
 
 @header {
     package mini_java.antlr;
+
+    import java.util.ArrayList;
+    import java.util.List;
+}
+
+/* The AST is built by the actions below as each rule is matched, through a
+ * NodeFactory supplied by mini-java.ast, so that no parse tree needs to be
+ * built. Every factory method is given the first token of the rule, which
+ * gives the node its position. */
+@parser::members {
+    private NodeFactory factory;
+
+    public void setNodeFactory(NodeFactory factory) {
+        this.factory = factory;
+    }
 }
 
-goal
-    :   mainClassDeclaration
-        classDeclaration*
+goal returns [Object node]
+    @init { List<Object> classes = new ArrayList<Object>(); }
+    :   main=mainClassDeclaration
+        ( c=classDeclaration {classes.add($c.node);} )*
         EOF
+        {$node = factory.goal($start, $main.node, classes);}
     ;
 
-mainClassDeclaration
+mainClassDeclaration returns [Object node]
     :   'class' ID
         mainClassBody
+        {$node = factory.mainClassDeclaration($start, $ID.text,
+                                              $mainClassBody.node);}
     ;
 
-classDeclaration
-    :   'class' ID ('extends' type)?
+classDeclaration returns [Object node]
+    @init { Object parent = null; }
+    :   'class' ID ('extends' p=type {parent = $p.node;})?
         classBody
+        {$node = factory.classDeclaration($start, $ID.text, parent,
+                                          $classBody.fields,
+                                          $classBody.methods);}
     ;
 
-mainClassBody
+mainClassBody returns [Object node]
     :   '{' mainMethod '}'
+        {$node = $mainMethod.node;}
     ;
 
-mainMethod
+mainMethod returns [Object node]
     :   mainMethodDeclaration '{' statement '}'
+        {$node = $statement.node;}
     ;
 
 mainMethodDeclaration
     :   'public' 'static' 'void' 'main' '(' 'String' '[' ']' ID ')'
     ;
 
-classBody
-    :   '{' fieldDeclaration*
-            methodDeclaration* '}'
+classBody returns [List<Object> fields, List<Object> methods]
+    @init {
+        $fields  = new ArrayList<Object>();
+        $methods = new ArrayList<Object>();
+    }
+    :   '{' ( f=fieldDeclaration  {$fields.add($f.node);}  )*
+            ( m=methodDeclaration {$methods.add($m.node);} )* '}'
     ;
 
-fieldDeclaration
+fieldDeclaration returns [Object node]
     :   type ID ';'
+        {$node = factory.fieldDeclaration($start, $ID.text, $type.node);}
     ;
 
-varDeclaration
+varDeclaration returns [Object node]
     :   type ID ';'
+        {$node = factory.varDeclaration($start, $ID.text, $type.node);}
     ;
 
-methodDeclaration
-    :   ( 'public' type ID formalParameters
+methodDeclaration returns [Object node]
+    @init {
+        String       name   = null;
+        Object       type   = null;
+        List<Object> params = null;
+    }
+    :   ( 'public' t=type i=ID p=formalParameters
+            {name = $i.text; type = $t.node; params = $p.params;}
         /* illegal method declarations */
         |          type ID formalParameters
             {notifyErrorListeners("method declaration without public");}
@@ -60,96 +97,145 @@ methodDeclaration
             {notifyErrorListeners("method declaration without argument list");}
         )
         methodBody
+        {$node = factory.methodDeclaration($start, name, type, params,
+                                           $methodBody.vars,
+                                           $methodBody.statements);}
     ;
 
-methodBody
+methodBody returns [List<Object> vars, List<Object> statements]
+    @init {
+        $vars       = new ArrayList<Object>();
+        $statements = new ArrayList<Object>();
+    }
     :   '{'
-            varDeclaration*
-            statement+
+            ( v=varDeclaration {$vars.add($v.node);}       )*
+            ( s=statement      {$statements.add($s.node);} )+
         '}'
     ;
 
-formalParameters
-    :   '(' formalParameterList? ')'
+formalParameters returns [List<Object> params]
+    @init { $params = new ArrayList<Object>(); }
+    :   '(' ( formalParameterList {$params = $formalParameterList.params;} )?
+        ')'
     ;
 
-formalParameterList
-    :   formalParameter (',' formalParameter)*
+formalParameterList returns [List<Object> params]
+    @init { $params = new ArrayList<Object>(); }
+    :   p=formalParameter[$params.size()] {$params.add($p.node);}
+        (',' q=formalParameter[$params.size()] {$params.add($q.node);})*
     ;
 
-formalParameter
+formalParameter [int index] returns [Object node]
     :   type ID
+        {$node = factory.formalParameter($start, $ID.text, $type.node,
+                                         $index);}
     ;
 
-type
-    :   intArrayType
-    |   booleanType
-    |   intType
-    |   ID
+type returns [Object node]
+    :   intArrayType {$node = factory.intArrayType();}
+    |   booleanType  {$node = factory.booleanType();}
+    |   intType      {$node = factory.intType();}
+    |   ID           {$node = factory.classType($ID.text);}
     ;
 
-statement
-    :   '{' statement* '}'
+statement returns [Object node]
+    :   '{' {List<Object> statements = new ArrayList<Object>();}
+            ( s=statement {statements.add($s.node);} )*
+        '}'
+        {$node = factory.nestedStatement($start, statements);}
     # nestedStatement
-    |   'if' '(' expression ')'
-            statement
+    |   'if' '(' pred=expression ')'
+            thenPart=statement
         'else'
-            statement
+            elsePart=statement
+        {$node = factory.ifElseStatement($start, $pred.node,
+                                         $thenPart.node, $elsePart.node);}
     # ifElseStatement
-    |   'while' '(' expression ')'
-            statement
+    |   'while' '(' pred=expression ')'
+            body=statement
+        {$node = factory.whileStatement($start, $pred.node, $body.node);}
     # whileStatement
-    |   'System.out.println' '(' expression ')' ';'
+    |   'System.out.println' '(' arg=expression ')' ';'
+        {$node = factory.printStatement($start, $arg.node);}
     # printStatement
-    |   ID '=' expression ';'
+    |   ID '=' source=expression ';'
+        {$node = factory.assignStatement($start, $ID.text, $source.node);}
     # assignStatement
-    |   ID '[' expression ']' '=' expression ';'
+    |   ID '[' index=expression ']' '=' source=expression ';'
+        {$node = factory.arrayAssignStatement($start, $ID.text, $index.node,
+                                              $source.node);}
     # arrayAssignStatement
-    |   'return' expression ';'
+    |   'return' value=expression ';'
+        {$node = factory.returnStatement($start, $value.node);}
     # returnStatement
-    |   'recur' expression '?' methodArgumentList ':' expression ';'
+    |   'recur' pred=expression '?' args=methodArgumentList ':'
+            base=expression ';'
+        {$node = factory.recurStatement($start, $pred.node, $args.args,
+                                        $base.node);}
     # recurStatement
     ;
 
-expression
-    :   expression '[' expression ']'
+expression returns [Object node]
+    :   array=expression '[' index=expression ']'
+        {$node = factory.arrayAccessExpression($start, $array.node,
+                                               $index.node);}
     # arrayAccessExpression
-    |   expression '.' 'length'
+    |   array=expression '.' 'length'
+        {$node = factory.arrayLengthExpression($start, $array.node);}
     # arrayLengthExpression
-    |   expression '.' ID methodArgumentList
+    |   caller=expression '.' ID args=methodArgumentList
+        {$node = factory.methodCallExpression($start, $caller.node, $ID.text,
+                                              $args.args);}
     # methodCallExpression
-    |   '-' expression
+    |   '-' operand=expression
+        {$node = factory.negExpression($start, $operand.node);}
     # negExpression
-    |   '!' expression
+    |   '!' operand=expression
+        {$node = factory.notExpression($start, $operand.node);}
     # notExpression
-    |   'new' 'int' '[' expression ']'
+    |   'new' 'int' '[' size=expression ']'
+        {$node = factory.arrayInstantiationExpression($start, $size.node);}
     # arrayInstantiationExpression
     |   'new' ID '(' ')'
+        {$node = factory.objectInstantiationExpression($start, $ID.text);}
     # objectInstantiationExpression
-    |   expression '+'  expression
+    |   left=expression '+'  right=expression
+        {$node = factory.addExpression($start, $left.node, $right.node);}
     # addExpression
-    |   expression '-'  expression
+    |   left=expression '-'  right=expression
+        {$node = factory.subExpression($start, $left.node, $right.node);}
     # subExpression
-    |   expression '*'  expression
+    |   left=expression '*'  right=expression
+        {$node = factory.mulExpression($start, $left.node, $right.node);}
     # mulExpression
-    |   expression '<'  expression
-    # ltExpression  
-    |   expression '&&' expression
+    |   left=expression '<'  right=expression
+        {$node = factory.ltExpression($start, $left.node, $right.node);}
+    # ltExpression
+    |   left=expression '&&' right=expression
+        {$node = factory.andExpression($start, $left.node, $right.node);}
     # andExpression
     |   INT
+        {$node = factory.intLitExpression($start, $INT.text);}
     # intLitExpression
     |   BOOL
+        {$node = factory.booleanLitExpression($start, $BOOL.text);}
     # booleanLitExpression
     |   ID
+        {$node = factory.identifierExpression($start, $ID.text);}
     # identifierExpression
     |   'this'
+        {$node = factory.thisExpression($start);}
     # thisExpression
-    |   '(' expression ')'
+    |   '(' inner=expression ')'
+        {$node = $inner.node;}
     # parenExpression
     ;
 
-methodArgumentList
-    :   '(' (expression (',' expression)*)? ')'
+methodArgumentList returns [Object args]
+    @init { List<Object> list = new ArrayList<Object>(); }
+    :   '(' ( a=expression {list.add($a.node);}
+              (',' b=expression {list.add($b.node);})* )? ')'
+        {$args = factory.argumentList($start, list);}
     ;
 
 intArrayType
@@ -165,7 +251,7 @@ intType
     ;
 
 INT
-    :   ('0' | [1-9][0-9]*) 
+    :   ('0' | [1-9][0-9]*)
     ;
 
 BOOL
@@ -0,0 +1,93 @@
+package mini_java.antlr;
+
+import java.util.List;
+
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Builds AST nodes from the actions in the MiniJava grammar, as each rule is
+ * matched. The implementation lives in mini-java.ast.
+ *
+ * Every node is given the first token of the rule it was matched by, which
+ * determines the node's line and column. Lists are only read while the node
+ * is being built, so they may be copied into any representation.
+ */
+public interface NodeFactory {
+    Object goal(Token start, Object main, List<Object> classes);
+
+    Object mainClassDeclaration(Token start, String name, Object body);
+
+    Object classDeclaration(Token start, String name, Object parent,
+                            List<Object> fields, List<Object> methods);
+
+    Object fieldDeclaration(Token start, String name, Object type);
+
+    Object varDeclaration(Token start, String name, Object type);
+
+    Object methodDeclaration(Token start, String name, Object type,
+                             List<Object> params, List<Object> vars,
+                             List<Object> statements);
+
+    Object formalParameter(Token start, String name, Object type, int index);
+
+    Object intArrayType();
+
+    Object booleanType();
+
+    Object intType();
+
+    Object classType(String name);
+
+    Object nestedStatement(Token start, List<Object> statements);
+
+    Object ifElseStatement(Token start, Object pred, Object then,
+                           Object otherwise);
+
+    Object whileStatement(Token start, Object pred, Object body);
+
+    Object printStatement(Token start, Object arg);
+
+    Object assignStatement(Token start, String target, Object source);
+
+    Object arrayAssignStatement(Token start, String target, Object index,
+                                Object source);
+
+    Object returnStatement(Token start, Object value);
+
+    Object recurStatement(Token start, Object pred, Object args, Object base);
+
+    Object arrayAccessExpression(Token start, Object array, Object index);
+
+    Object arrayLengthExpression(Token start, Object array);
+
+    Object methodCallExpression(Token start, Object caller, String method,
+                                Object args);
+
+    Object negExpression(Token start, Object operand);
+
+    Object notExpression(Token start, Object operand);
+
+    Object arrayInstantiationExpression(Token start, Object size);
+
+    Object objectInstantiationExpression(Token start, String type);
+
+    Object addExpression(Token start, Object left, Object right);
+
+    Object subExpression(Token start, Object left, Object right);
+
+    Object mulExpression(Token start, Object left, Object right);
+
+    Object ltExpression(Token start, Object left, Object right);
+
+    Object andExpression(Token start, Object left, Object right);
+
+    Object intLitExpression(Token start, String text);
+
+    Object booleanLitExpression(Token start, String text);
+
+    Object identifierExpression(Token start, String id);
+
+    Object thisExpression(Token start);
+
+    Object argumentList(Token start, List<Object> args);
+}
@@ -1,13 +1,24 @@
 (ns mini-java.ErrorListener
   "Extends ANTLR's BaseErrorListener, in order to implement custom displays of
   parse errors. All error reporting displays the line and column number,
-  and underlines the place in the line where the error occurred."
+  and underlines the place in the line where the error occurred.
+
+  Each listener is constructed with the source being parsed, which is where
+  the lines to underline are looked up."
   (:require [mini-java.errors :refer [print-error]])
   (:gen-class
-     :name    mini-java.ErrorListener
-     :extends org.antlr.v4.runtime.BaseErrorListener))
+     :name         mini-java.ErrorListener
+     :extends      org.antlr.v4.runtime.BaseErrorListener
+     :init         init
+     :state        source
+     :constructors {[Object] []}))
+
+(defn -init
+  "Stores the source being parsed as the listener's state."
+  [source]
+  [[] source])
 
 (defn -syntaxError
   "Report a syntax error."
   [this parser symbol line column msg exeption]
-  (print-error parser msg line column))
+  (print-error (.source this) msg line column))
@@ -1,399 +1,291 @@
 (ns mini-java.ast
-  "A collection of functions for transforming the ANTLR AST into a more
-  desirable AST, as well as functions to operate on the transformed AST."
-  (:require [clojure.reflect :refer [typename]]
-            [mini-java.util :as util])
-  (:import [org.antlr.v4.runtime.tree TerminalNodeImpl]
-           [mini_java.antlr MiniJavaParser]))
-
-(defn- node-line-and-column
-  "Returns the line and column of the first token in a given node."
-  [node]
-  (let [token (.getStart node)]
-    (util/token-line-and-column token)))
+  "Builds the AST while the source is being parsed, and defines the nodes it
+  is made of.
+
+  Each kind of node in the AST is a record type, carrying the line and column
+  at which it begins. The grammar's actions build these records bottom-up
+  through the NodeFactory returned by node-factory, so no ANTLR parse tree is
+  ever built. Later phases dispatch on the record type through protocols, and
+  the context keyword of a node (e.g. :class-declaration) is available
+  through the Node protocol."
+  (:require [mini-java.symbols :as symbols]
+            [mini-java.util    :as util])
+  (:import [mini_java.antlr NodeFactory]))
+
+(defprotocol Node
+  (context [node]
+    "Returns the context keyword of the given node, or nil if it is not an
+    AST node."))
+
+(extend-protocol Node
+  Object
+  (context [_] nil)
+
+  nil
+  (context [_] nil))
+
+(defmacro ^:private defnode
+  "Defines a record type for an AST node with the given context keyword and
+  fields. Every node also has line and column fields, which come last."
+  [type ctx fields]
+  `(defrecord ~type [~@fields ~'line ~'column]
+     Node
+     (context [_#] ~ctx)))
+
+(defnode Goal                          :goal
+  [main classes])
+(defnode MainClassDeclaration          :main-class-declaration
+  [name body])
+(defnode ClassDeclaration              :class-declaration
+  [name parent vars methods])
+(defnode MethodDeclaration             :method-declaration
+  [name type args vars body])
+(defnode FieldDeclaration              :field-declaration
+  [name type])
+(defnode VarDeclaration                :var-declaration
+  [name type])
+(defnode FormalParameter               :formal-parameter
+  [name type arg-index])
+(defnode NestedStatement               :nested-statement
+  [statements])
+(defnode IfElseStatement               :if-else-statement
+  [pred then else])
+(defnode WhileStatement                :while-statement
+  [pred body])
+(defnode PrintStatement                :print-statement
+  [arg])
+(defnode AssignStatement               :assign-statement
+  [target source])
+(defnode ArrayAssignStatement          :array-assign-statement
+  [target index source])
+(defnode ReturnStatement               :return-statement
+  [return-value])
+(defnode RecurStatement                :recur-statement
+  [pred args base])
+(defnode AndExpression                 :and-expression
+  [left right])
+(defnode LtExpression                  :lt-expression
+  [left right])
+(defnode AddExpression                 :add-expression
+  [left right])
+(defnode SubExpression                 :sub-expression
+  [left right])
+(defnode MulExpression                 :mul-expression
+  [left right])
+(defnode ArrayAccessExpression         :array-access-expression
+  [array index])
+(defnode ArrayLengthExpression         :array-length-expression
+  [array])
+(defnode MethodCallExpression          :method-call-expression
+  [caller method args])
+(defnode IntLitExpression              :int-lit-expression
+  [value])
+(defnode BooleanLitExpression          :boolean-lit-expression
+  [value])
+(defnode IdentifierExpression          :identifier-expression
+  [id])
+(defnode ThisExpression                :this-expression
+  [])
+(defnode ArrayInstantiationExpression  :array-instantiation-expression
+  [size])
+(defnode ObjectInstantiationExpression :object-instantiation-expression
+  [type])
+(defnode NotExpression                 :not-expression
+  [operand])
+(defnode NegExpression                 :neg-expression
+  [operand])
+
 
 (defn- with-line-and-column
-  "Attaches line, column, and context metadata to the given object."
-  [node ctx obj]
-  (let [[line column] (node-line-and-column node)]
+  "Constructs an AST node by applying the given record constructor to the
+  given fields, followed by the line and column of the given token."
+  [token constructor & fields]
+  (let [[line column] (util/token-line-and-column token)]
+    (apply constructor (concat fields [line column]))))
+
+(defn- with-position-meta
+  "Attaches line and column metadata to an object which is not a node, such
+  as a method argument list, so that errors can still point at it."
+  [token obj]
+  (let [[line column] (util/token-line-and-column token)]
     (with-meta obj
-      {:line line
-       :column column
-       :context ctx})))
-
-(defn context
-  "Returns the context metadata from the given node."
-  [node]
-  (-> node meta :context))
-
-(def ^:private parser-inner-classes
-  "An array of all inner classes of MiniJavaParser."
-  (.getClasses MiniJavaParser))
-
-(defn- typeify
-  "Transform the given type generated by ANTLR into a clojure keyword.
-
-  For example, if given the type ClassDeclarationContext, outputs
-  :class-declaration."
-  [type]
-  (let [str-name (-> type
-                     typename
-                     (clojure.string/replace #".*MiniJavaParser\$" "")
-                     (clojure.string/replace #"Context" "")
-                     util/camel->lisp)
-        kw-name  (keyword str-name)]
-    [kw-name type]))
-
-(def ^:private type->key
-  "A mapping from MiniJavaParser inner class types to their keyword
-  representations. TerminalNodeImpl -> :terminal-node is added manually,
-  as it is the only type not ending with \"Context\" which needs to be used."
-  (assoc (into {} (map (comp vec reverse typeify) parser-inner-classes))
-    TerminalNodeImpl :terminal-node))
-
-(def ^:private obj->type-key
-  "A mapping from objects to their type keywords, as given by type->key."
-  (comp type->key type))
-
-(defn- children
-  "Returns all children of a given node."
-  [node]
-  (map #(.getChild node %) (range (.getChildCount node))))
-
-(defn- remove-braces
-  "Removes the outer braces from a node."
-  [nodes]
-  (-> nodes rest butlast))
-
-(defn- var-declaration? [x]
-  (= :var-declaration
-     (context x)))
-
-(defn- field-declaration? [x]
-  (= :field-declaration
-     (context x)))
-
-(defn- method-declaration? [x]
-  (= :method-declaration
-     (context x)))
-
-(defmulti ast
-  "Multimethod for transforming an ANTLR TreeNode into a minimal hash-map
-  representation. Dispatches on the keyword representation of the node's type.
-  Any transformed node which implements IObj will have attached metadata
-  containing the line, column, and context of the node."
-  obj->type-key)
-
-(defmethod ast :default [node]
-  "Unknown node type reached. If this happens then a bug occurred. Crash."
-  (throw (ex-info "Unknown node type"
-                  {:type :unknown-node-type,
-                   :node node})))
-
-(defmethod ast :terminal-node [node]
-  "Reached a terminal node, simply transform it into the underlying text of
-  its symbol."
-  (-> node .-symbol .getText))
-
-(defmethod ast :goal [node]
-  "The root of any valid parse tree. Transform into a hash map containing
-  the transformed main and other classes."
-  (let [children   (children node)
-        main-class (first children)
-        classes    (-> children rest butlast)]
-    (with-line-and-column node :goal
-      {:main    (ast main-class),
-       :classes (map ast classes)})))
-
-(defmethod ast :main-class-declaration [node]
-  "Transform a main class declaration into a hash-map containing its name
-  and body statement."
-  (with-line-and-column node :main-class-declaration
-    {:name (ast (.getChild node 1)),
-     :body (ast (.getChild node 2))}))
-
-(defmethod ast :class-declaration [node]
-  "Transform a non-main class declaration into a hash-map containing its
-  name, its parent's name, its variables, and methods."
-  (let [child? (= 5 (.getChildCount node))
-        ;; determine the index of the body, which depends on whether it
-        ;; has a parent
-        body-idx (if child? 4 2)
-        ;; parsing the body yields a hash-map of fields and methods
-        {:keys [vars methods]} (ast (.getChild node body-idx))]
-    (with-line-and-column node :class-declaration
-      {:name    (ast (.getChild node 1)),
-       :parent  (when child? (ast (.getChild node 3))),
-       :vars    vars
-       :methods methods})))
-
-(defmethod ast :main-class-body [node]
-  "Transform a main class body, which just results in the transformation of
-  its only method."
-  (ast (.getChild node 1)))
-
-(defmethod ast :main-method [node]
-  "Transform the main method, which just results in the transformation of
-  its only statement."
-  (ast (.getChild node 2)))
-
-(defmethod ast :class-body [node]
-  "Transform a non-main class body, which results in a hash-map containing its
-  transformed variables and methods."
-  (let [children     (children node)
-        ;; transform all declarations within the class, which results in a
-        ;; seq of both variable and method declarations, which are separated
-        ;; here based on their context metadata
-        declarations (map ast (remove-braces children))
-        vars         (filter field-declaration? declarations)
-        methods      (filter method-declaration? declarations)]
-    (with-line-and-column node :class-body
-     {:vars    vars,
-      :methods methods})))
-
-(defmethod ast :method-declaration [node]
-  "Transform a method, resulting in a hash-map containing its name,
-  return type, arguments, local variables, and body statements,
-  all transformed.."
-  (let [;; transforming the body of a method results in a hash-map separating
-        ;; the variable declarations and actual statements of the method
-        {:keys [vars body]} (ast (.getChild node 4))]
-    (with-line-and-column node :method-declaration
-      {:name (ast (.getChild node 2)),
-       :type (ast (.getChild node 1)),
-       :args (ast (.getChild node 3)),
-       :vars vars,
-       :body body})))
-
-(defmethod ast :method-body [node]
-  "Transforms a method body, separating its variable declarations and body
-  statements into a hash-map. No context metadata is preserved, as it is
-  destructured into the method declaration context."
-  (let [children (remove-braces (children node))
-        body-nodes (map ast children)]
-    {:vars (filter var-declaration? body-nodes)
-     :body (filter (comp not var-declaration?) body-nodes)}))
-
-(defmethod ast :field-declaration [node]
-  "Transforms a field declaration into a hash-map containing both its
-  name and its type."
-  (with-line-and-column node :field-declaration
-    {:name (ast (.getChild node 1)),
-     :type (ast (.getChild node 0))}))
-
-(defmethod ast :var-declaration [node]
-  "Transforms a variable declaration into a hash-map containing both its
-  name and its type."
-  (with-line-and-column node :var-declaration
-    {:name (ast (.getChild node 1)),
-     :type (ast (.getChild node 0))}))
-
-(defmethod ast :nested-statement [node]
-  "Transforms a nested statement into a seq of the statements it contains."
-  (with-line-and-column node :nested-statement
-    (->> node
-         children
-         remove-braces
-         (map ast))))
-
-(defmethod ast :if-else-statement [node]
-  "Transforms an if/else statement into a hash-map containing the predicate,
-  then, and else parts."
-  (with-line-and-column node :if-else-statement
-    {:pred (ast (.getChild node 2)),
-     :then (ast (.getChild node 4)),
-     :else (ast (.getChild node 6))}))
-
-(defmethod ast :while-statement [node]
-  "Transforms a while statement into a hash-map containing the predicate and
-  body statement."
-  (with-line-and-column node :while-statement
-    {:pred (ast (.getChild node 2)),
-     :body (ast (.getChild node 4))}))
-
-(defmethod ast :print-statement [node]
-  "Transforms a print statement into a hash-map containing only its single
-  argument."
-  (with-line-and-column node :print-statement
-    {:arg (ast (.getChild node 2))}))
-
-(defmethod ast :assign-statement [node]
-  "Transforms an assignment statement into a hash-map containing the name
-  of its target and the source expression."
-  (with-line-and-column node :assign-statement
-    {:target (ast (.getChild node 0)),
-     :source (ast (.getChild node 2))}))
-
-(defmethod ast :array-assign-statement [node]
-  "Transforms an array assignment statement into a hash-map containing the
-  name of its target and the source expression."  
-  (with-line-and-column node :array-assign-statement
-    {:target (ast (.getChild node 0)),
-     :index  (ast (.getChild node 2)),
-     :source (ast (.getChild node 5))}))
-
-(defmethod ast :return-statement [node]
-  "Transforms a return statement into a hash-map containing only its return
-  value."
-  (with-line-and-column node :return-statement
-    {:return-value (ast (.getChild node 1))}))
-
-(defmethod ast :recur-statement [node]
-  "Transforms a recur statement into a hash-map containing its predicate,
-  argument list, and base-case."
-  (with-line-and-column node :recur-statement
-    {:pred (ast (.getChild node 1)),
-     :args (ast (.getChild node 3)),
-     :base (ast (.getChild node 5))}))
-
-(defmethod ast :method-argument-list [node]
-  "Transforms a method argument list into a seq of the arguments being passed."
-  (let [children (children node)
-        args     (take-nth 2 (-> children rest butlast))]
-    (with-line-and-column node :method-argument-list
-     (map ast args))))
-
-(defmethod ast :formal-parameters [node]
-  "Transforms formal parameters into either an empty seq, or a list of formal
-  parameters."
-  (with-line-and-column node :formal-parameters
-    (let [length (.getChildCount node)]
-      (if (= 3 length)
-        (ast (.getChild node 1))
-        ()))))
-
-(defmethod ast :formal-parameter-list [node]
-  "Transforms a non-empty formal parameter list into a seq of its formal
-  parameters. Each argument is assigned a sequential argument index, starting
-  from 0."
-  (->> node
-       children
-       (take-nth 2) ; ignore commas
-       (map ast)
-       (map (fn [i arg] (assoc arg :arg-index i))
-            (range))))
-
-(defmethod ast :formal-parameter [node]
-  "Transforms a formal parameter into a hash-map containing its type and name."
-  (with-line-and-column node :formal-parameter
-    {:type  (ast (.getChild node 0)),
-     :name  (ast (.getChild node 1))}))
-
-
-(defmethod ast :type [node]
-  "Transforms a type into its underlying representation."
-  (ast (.getChild node 0)))
-
-(defn- unary-expression [node]
-  "Transforms a unary expression into a hash-map containing its operand."
-  (with-line-and-column node (obj->type-key node)
-    {:operand (ast (.getChild node 1))}))
-
-(defn- binary-expression [node]
-  "Transforms a binary expression into a hash-map containing its operands."
-  (with-line-and-column node (obj->type-key node)
-    {:left  (ast (.getChild node 0)),
-     :right (ast (.getChild node 2))}))
-
-(defmethod ast :and-expression [node]
-  (binary-expression node))
-
-(defmethod ast :lt-expression [node]
-  (binary-expression node))
-
-(defmethod ast :add-expression [node]
-  (binary-expression node))
-
-(defmethod ast :sub-expression [node]
-  (binary-expression node))
-
-(defmethod ast :mul-expression [node]
-  (binary-expression node))
-
-(defmethod ast :array-access-expression [node]
-  "Transforms an array access expression into a hash-map containing an
-  expression which evaluates to an array, and the index being accessed."
-  (with-line-and-column node :array-access-expression
-    {:array (ast (.getChild node 0)),
-     :index (ast (.getChild node 2))}))
-
-(defmethod ast :array-length-expression [node]
-  "Transforms an array length expression into a hash-map containing only the
-  expression which evaluates to the array."
-  (with-line-and-column node :array-length-expression
-    {:array (ast (.getChild node 0))}))
-
-(defmethod ast :method-call-expression [node]
-  "Transforms a method call expression into a hash-map containing the
-  expression it is being called on, the name of the method, and the arguments
-  it is being called with."
-  (with-line-and-column node :method-call-expression
-    {:caller (ast (.getChild node 0)),
-     :method (ast (.getChild node 2)),
-     :args   (ast (.getChild node 3))}))
-
-(defmethod ast :int-lit-expression [node]
-  "Transforms an integer literal expression into a hash-map containing only
-  its value as an Integer object."
-  (with-line-and-column node :int-lit-expression
-    {:value (-> node
-                (.getChild 0)
-                ast
-                Integer.)}))
-
-(defmethod ast :boolean-lit-expression [node]
-  "Transforms a boolean literal expression into a hash-map containing only
-  its value as a Boolean object."
-  (with-line-and-column node :boolean-lit-expression
-    {:value (-> node
-                (.getChild 0)
-                ast
-                Boolean.)}))
-
-(defmethod ast :identifier-expression [node]
-  "Transforms an identitifier expression into a hash-map containing only
-  the string representation of the ID."
-  (with-line-and-column node :identifier-expression
-    {:id (ast (.getChild node 0))}))
-
-(defmethod ast :this-expression [node]
-  "Transforms a this expression into just the :this keyword."
-  :this)
-
-(defmethod ast :array-instantiation-expression [node]
-  "Transforms an array instantiation expression into a hash-map containing only
-  its size. Arrays can only be int arrays, so there is no need to specify the
-  type."
-  (with-line-and-column node :array-instantiation-expression
-    {:size (ast (.getChild node 3))}))
-
-(defmethod ast :object-instantiation-expression [node]
-  "Transforms an object instantiation expression into a hash-map containing
-  only its type. No constructor parameters need to be preserved, as MiniJava
-  constructors take no arguments."
-  (with-line-and-column node :object-instantiation-expression
-    {:type (ast (.getChild node 1))}))
-
-(defmethod ast :not-expression [node]
-  (unary-expression node))
-
-(defmethod ast :neg-expression [node]
-  (unary-expression node))
-
-(defmethod ast :paren-expression [node]
-  "Transforms a parenthesis expression into whatever is contained within it.
-  Parentheses are only important at parse-time."
-  (ast (.getChild node 1)))
-
-
-(defmethod ast :int-type [node]
-  "Transforms an int type expression into the keyword :int."
-  :int)
-
-(defmethod ast :int-array-type [node]
-  "Transforms an int array type expression into the keyword :int<>."
-  :int<>)
-
-(defmethod ast :boolean-type [node]
-  "Transforms a boolean type expression into the keyword :boolean."
-  :boolean)
+      {:line   line
+       :column column})))
+
+(defn with-source
+  "Attaches the source which a goal was parsed from to each of its classes,
+  under :origin, for error reporting, and returns the goal. The source is not
+  a field of the nodes, so attaching another source later does not disturb
+  them."
+  [goal source]
+  (when goal
+    (assoc goal
+      :main    (assoc (:main goal) :origin source)
+      :classes (mapv #(assoc % :origin source) (:classes goal)))))
+
+(defn node-factory
+  "Returns the NodeFactory used by the grammar's actions to build the AST
+  while parsing, so that ANTLR never needs to build a parse tree.
+
+  Each method is given the first token of the rule being matched, and the
+  already-built nodes of its sub-rules. Lists of nodes are copied into
+  vectors, and every identifier is interned in the given symbol table. When
+  the parser recovers from a syntax error, some of the nodes given may be
+  nil, so no method may assume its arguments are present; the resulting AST
+  is discarded in that case anyway."
+  [symbols]
+  (let [ident (partial symbols/ident symbols)]
+    (reify NodeFactory
+      (goal [_ start main classes]
+        (with-line-and-column start ->Goal
+          main
+          (vec classes)))
+
+      (mainClassDeclaration [_ start name body]
+        (with-line-and-column start ->MainClassDeclaration
+          (ident name)
+          body))
+
+      (classDeclaration [_ start name parent fields methods]
+        (with-line-and-column start ->ClassDeclaration
+          (ident name)
+          parent
+          (vec fields)
+          (vec methods)))
+
+      (fieldDeclaration [_ start name type]
+        (with-line-and-column start ->FieldDeclaration
+          (ident name)
+          type))
+
+      (varDeclaration [_ start name type]
+        (with-line-and-column start ->VarDeclaration
+          (ident name)
+          type))
+
+      (methodDeclaration [_ start name type params vars statements]
+        (with-line-and-column start ->MethodDeclaration
+          (ident name)
+          type
+          (vec params)
+          (vec vars)
+          (vec statements)))
+
+      (formalParameter [_ start name type index]
+        (with-line-and-column start ->FormalParameter
+          (ident name)
+          type
+          index))
+
+      ;; types are represented by keywords, or the name of a class
+      (intArrayType [_] :int<>)
+      (booleanType  [_] :boolean)
+      (intType      [_] :int)
+      (classType    [_ name] (ident name))
+
+      (nestedStatement [_ start statements]
+        (with-line-and-column start ->NestedStatement
+          (vec statements)))
+
+      (ifElseStatement [_ start pred then otherwise]
+        (with-line-and-column start ->IfElseStatement
+          pred
+          then
+          otherwise))
+
+      (whileStatement [_ start pred body]
+        (with-line-and-column start ->WhileStatement
+          pred
+          body))
+
+      (printStatement [_ start arg]
+        (with-line-and-column start ->PrintStatement
+          arg))
+
+      (assignStatement [_ start target source]
+        (with-line-and-column start ->AssignStatement
+          (ident target)
+          source))
+
+      (arrayAssignStatement [_ start target index source]
+        (with-line-and-column start ->ArrayAssignStatement
+          (ident target)
+          index
+          source))
+
+      (returnStatement [_ start value]
+        (with-line-and-column start ->ReturnStatement
+          value))
+
+      (recurStatement [_ start pred args base]
+        (with-line-and-column start ->RecurStatement
+          pred
+          args
+          base))
+
+      (arrayAccessExpression [_ start array index]
+        (with-line-and-column start ->ArrayAccessExpression
+          array
+          index))
+
+      (arrayLengthExpression [_ start array]
+        (with-line-and-column start ->ArrayLengthExpression
+          array))
+
+      (methodCallExpression [_ start caller method args]
+        (with-line-and-column start ->MethodCallExpression
+          caller
+          (ident method)
+          args))
+
+      (negExpression [_ start operand]
+        (with-line-and-column start ->NegExpression
+          operand))
+
+      (notExpression [_ start operand]
+        (with-line-and-column start ->NotExpression
+          operand))
+
+      (arrayInstantiationExpression [_ start size]
+        ;; arrays can only be int arrays, so there is no need for a type
+        (with-line-and-column start ->ArrayInstantiationExpression
+          size))
+
+      (objectInstantiationExpression [_ start type]
+        ;; MiniJava constructors take no arguments, so only the type is kept
+        (with-line-and-column start ->ObjectInstantiationExpression
+          (ident type)))
+
+      (addExpression [_ start left right]
+        (with-line-and-column start ->AddExpression left right))
+
+      (subExpression [_ start left right]
+        (with-line-and-column start ->SubExpression left right))
+
+      (mulExpression [_ start left right]
+        (with-line-and-column start ->MulExpression left right))
+
+      (ltExpression [_ start left right]
+        (with-line-and-column start ->LtExpression left right))
+
+      (andExpression [_ start left right]
+        (with-line-and-column start ->AndExpression left right))
+
+      (intLitExpression [_ start text]
+        (with-line-and-column start ->IntLitExpression
+          (Integer. ^String text)))
+
+      (booleanLitExpression [_ start text]
+        (with-line-and-column start ->BooleanLitExpression
+          (Boolean. ^String text)))
+
+      (identifierExpression [_ start id]
+        (with-line-and-column start ->IdentifierExpression
+          (ident id)))
+
+      (thisExpression [_ start]
+        (with-line-and-column start ->ThisExpression))
+
+      (argumentList [_ start args]
+        (with-position-meta start
+          (vec args))))))
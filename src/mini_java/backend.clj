@@ -0,0 +1,258 @@
+(ns mini-java.backend
+  "Emits the bytecode of a method from its IR, following the layout of its
+  blocks, so that a jump to the block laid out next becomes a fall
+  through."
+  (:require [mini-java.static-semantics :as semantics])
+  (:import [org.objectweb.asm Label Type]
+           [org.objectweb.asm.commons GeneratorAdapter Method]))
+
+(def ^:private init
+  (Method/getMethod "void <init>()"))
+
+(def ^:private print-stream
+  (Type/getType java.io.PrintStream))
+
+(def ^:private println-int
+  (Method/getMethod "void println(int)"))
+
+(def ^:private get-class
+  (Method/getMethod "Class getClass()"))
+
+(defn- type->Type
+  "Maps a type to its ASM Type object."
+  [type]
+  (Type/getType (semantics/type-descriptor type)))
+
+(defn- argument?
+  "Returns whether or not the given slot of a method holds an argument."
+  [method slot]
+  (<= slot (count (:args method))))
+
+(declare emit-jump)
+
+(defn- emit-expression
+  "Emits the code which pushes the value of an expression onto the stack."
+  [expression method ^GeneratorAdapter method-gen]
+  (let [emit #(emit-expression % method method-gen)]
+    (case (:op expression)
+      :const
+      (if (= :boolean (:type expression))
+        (.push method-gen (boolean (:value expression)))
+        (.push method-gen (int (:value expression))))
+
+      :local
+      (let [slot (:slot expression)]
+        (if (argument? method slot)
+          (.loadArg method-gen (dec slot))
+          (.loadLocal method-gen slot (type->Type (:type expression)))))
+
+      :this
+      (.loadThis method-gen)
+
+      :get-field
+      (do (if-let [object (:object expression)]
+            (emit object)
+            (.loadThis method-gen))
+          (.getField method-gen
+                     (type->Type (:owner expression))
+                     (str (:name expression))
+                     (type->Type (:type expression))))
+
+      (:add :sub :mul)
+      (do (emit (:left expression))
+          (emit (:right expression))
+          (.math method-gen
+                 (case (:op expression)
+                   :add GeneratorAdapter/ADD
+                   :sub GeneratorAdapter/SUB
+                   :mul GeneratorAdapter/MUL)
+                 Type/INT_TYPE))
+
+      :and
+      (let [false-label (.newLabel method-gen)
+            end-label   (.newLabel method-gen)]
+        (emit-jump expression false false-label method method-gen)
+        (doto method-gen
+          (.push true)
+          (.goTo end-label)
+          (.mark false-label)
+          (.push false)
+          (.mark end-label)))
+
+      :lt
+      (let [true-label (.newLabel method-gen)
+            end-label  (.newLabel method-gen)]
+        (emit (:left expression))
+        (emit (:right expression))
+        (doto method-gen
+          (.ifCmp Type/INT_TYPE GeneratorAdapter/LT true-label)
+          (.push false)
+          (.goTo end-label)
+          (.mark true-label)
+          (.push true)
+          (.mark end-label)))
+
+      :not
+      (do (emit (:operand expression))
+          (.not method-gen))
+
+      :neg
+      (do (emit (:operand expression))
+          (.math method-gen GeneratorAdapter/NEG Type/INT_TYPE))
+
+      :array-load
+      (do (emit (:array expression))
+          (emit (:index expression))
+          (.arrayLoad method-gen Type/INT_TYPE))
+
+      :array-length
+      (do (emit (:array expression))
+          (.arrayLength method-gen))
+
+      :call
+      (do (emit (:receiver expression))
+          (doseq [arg (:args expression)]
+            (emit arg))
+          (.invokeVirtual method-gen
+                          (Type/getObjectType (str (:owner expression)))
+                          (new Method (str (:name expression))
+                               ^String (:descriptor expression))))
+
+      :new
+      (let [type (Type/getObjectType (str (:type expression)))]
+        (doto method-gen
+          (.newInstance type)
+          (.dup)
+          (.invokeConstructor type init)))
+
+      :new-array
+      (do (emit (:size expression))
+          (.newArray method-gen Type/INT_TYPE)))))
+
+(defn- emit-jump
+  "Emits the code which jumps to label when a boolean expression evaluates
+  to jump-if, and otherwise falls through. A comparison jumps with a single
+  if_icmp, a negation jumps on its operand with the sense flipped, and &&
+  jumps on each operand in turn, so none of them push a boolean only for it
+  to be tested."
+  [test jump-if ^Label label method ^GeneratorAdapter method-gen]
+  (case (:op test)
+    :lt
+    (do (emit-expression (:left  test) method method-gen)
+        (emit-expression (:right test) method method-gen)
+        (.ifCmp method-gen Type/INT_TYPE
+                (if jump-if GeneratorAdapter/LT GeneratorAdapter/GE)
+                label))
+
+    :not
+    (emit-jump (:operand test) (not jump-if) label method method-gen)
+
+    :and
+    (if jump-if
+      (let [skip (.newLabel method-gen)]
+        (emit-jump (:left  test) false skip  method method-gen)
+        (emit-jump (:right test) true  label method method-gen)
+        (.mark method-gen skip))
+      (do (emit-jump (:left  test) false label method method-gen)
+          (emit-jump (:right test) false label method method-gen)))
+
+    (do (emit-expression test method method-gen)
+        (.ifZCmp method-gen
+                 (if jump-if GeneratorAdapter/NE GeneratorAdapter/EQ)
+                 label))))
+
+(defn- store-local
+  "Emits the code which stores the value on top of the stack in a slot."
+  [method slot type ^GeneratorAdapter method-gen]
+  (if (argument? method slot)
+    (.storeArg method-gen (int (dec slot)))
+    (.storeLocal method-gen (int slot) (type->Type type))))
+
+(defn- emit-statement
+  "Emits the code of a statement."
+  [statement method ^GeneratorAdapter method-gen]
+  (let [emit #(emit-expression % method method-gen)]
+    (case (:op statement)
+      :store
+      (do (emit (:value statement))
+          (store-local method (:slot statement) (:type statement) method-gen))
+
+      :rebind
+      (do (doseq [value (:values statement)]
+            (emit value))
+          (doseq [slot (rseq (:slots statement))]
+            (store-local method slot nil method-gen)))
+
+      :put-field
+      (do (if-let [object (:object statement)]
+            (emit object)
+            (.loadThis method-gen))
+          (emit (:value statement))
+          (.putField method-gen
+                     (type->Type (:owner statement))
+                     (str (:name statement))
+                     (type->Type (:type statement))))
+
+      :array-store
+      (do (emit (:array statement))
+          (emit (:index statement))
+          (emit (:value statement))
+          (.arrayStore method-gen Type/INT_TYPE))
+
+      :print
+      (do (.getStatic method-gen (Type/getType System) "out" print-stream)
+          (emit (:value statement))
+          (.invokeVirtual method-gen print-stream println-int))
+
+      :check-null
+      ;; as javac does, calling getClass throws if the reference is null
+      (do (emit (:value statement))
+          (doto method-gen
+            (.invokeVirtual (Type/getType Object) get-class)
+            (.pop))))))
+
+(defn- emit-exit
+  "Emits the code of the exit of a block, given the labels of the blocks,
+  and the label of the block laid out next, which need not be jumped to."
+  [exit method labels next ^GeneratorAdapter method-gen]
+  (let [target #(labels %)]
+    (case (:op exit)
+      :goto
+      (when-not (= next (:target exit))
+        (.goTo method-gen (target (:target exit))))
+
+      :branch
+      (let [{:keys [test then else]} exit
+            jump #(emit-jump test %1 (target %2) method method-gen)]
+        (cond
+         (= next then)
+         (jump false else)
+
+         (= next else)
+         (jump true then)
+
+         :else
+         (do (jump true then)
+             (.goTo method-gen (target else)))))
+
+      :return
+      (do (when-let [value (:value exit)]
+            (emit-expression value method method-gen))
+          (.returnValue method-gen)))))
+
+(defn emit
+  "Emits the bytecode of the body of a method, given its IR, with the
+  method's generator. Control enters the method at the first block laid
+  out, so it jumps to the entry if that is laid out elsewhere."
+  [method ^GeneratorAdapter method-gen]
+  (let [layout (:layout method)
+        labels (into {} (for [label layout]
+                          [label (.newLabel method-gen)]))]
+    (when-not (= (:entry method) (first layout))
+      (.goTo method-gen ^Label (labels (:entry method))))
+    (doseq [[label next] (map vector layout (concat (rest layout) [nil]))
+            :let [block ((:blocks method) label)]]
+      (.mark method-gen ^Label (labels label))
+      (doseq [statement (:code block)]
+        (emit-statement statement method method-gen))
+      (emit-exit (:exit block) method labels next method-gen))))
@@ -0,0 +1,255 @@
+(ns mini-java.cache
+  "Keeps an on-disk cache of the classes compiled into an output directory,
+  so that an incremental compilation only checks and generates the classes
+  which could have changed since the last one.
+
+  Every class is given a key, which is a hash of its AST, ignoring positions,
+  together with the hashes of the signatures of every class it depends on.
+  A class depends on each class it names, and, transitively, on each class
+  named in the signatures of those: their parents, the types of their fields,
+  and the argument and return types of their methods. That covers every type
+  an expression within the class can have, so a class whose key has not
+  changed would be checked and generated exactly as before.
+
+  When the whole program is analyzed, the code of a class also depends on
+  the hierarchy, which decides the calls made direct, and on the bodies of
+  the methods those calls may inline. The signatures of every class are
+  then part of every key, and so are the bodies of the methods of its
+  dependencies with the name of a method it calls, so that a change to the
+  body of a method only invalidates the classes which may inline it.
+
+  The cache is written to the output directory after a successful
+  compilation only, so every class it records was free of errors, and maps
+  the name of each class to its key and the hash of its class file."
+  (:require [mini-java.ast     :as ast]
+            [mini-java.util    :as util]
+            [clojure.edn       :as edn]
+            [clojure.java.io   :as io])
+  (:import [mini_java.ast MainClassDeclaration MethodCallExpression
+            ObjectInstantiationExpression]
+           [mini_java.symbols Ident]))
+
+(def ^:private cache-name
+  "The name of the cache file within the output directory."
+  ".mini-javac-cache.edn")
+
+(def ^:private version
+  "The version of the cache format, which invalidates every entry when
+  changed."
+  2)
+
+(defn- strip
+  "Converts a node into plain data, with its positions and source dropped,
+  and its identifiers replaced by their names."
+  [node]
+  (cond
+   (ast/context node)
+   (into [(ast/context node)]
+         (map strip (vals (dissoc node :line :column :origin))))
+
+   (sequential? node)
+   (mapv strip node)
+
+   (instance? Ident node)
+   (str node)
+
+   :else
+   node))
+
+(defn- fingerprint
+  "Returns the hash of the given data, as a hex string."
+  [data]
+  (util/sha-1 (.getBytes (pr-str data) "UTF-8")))
+
+(defn- class-type?
+  "Returns whether or not the given type names a class."
+  [type]
+  (and type (not (keyword? type))))
+
+(defn- signature
+  "Returns the parts of a class which other classes may depend on."
+  [class]
+  (if (instance? MainClassDeclaration class)
+    [(str (:name class))]
+    [(str (:name class))
+     (some-> class :parent str)
+     (mapv (comp strip (juxt :name :type)) (:vars class))
+     (mapv (fn [method]
+             [(str (:name method))
+              (strip (:type method))
+              (mapv (comp strip :type) (:args method))])
+           (:methods class))]))
+
+(defn- signature-types
+  "Returns the names of the classes named in the signature of a class."
+  [class]
+  (->> (concat [(:parent class)]
+               (map :type (:vars class))
+               (map :type (:methods class))
+               (mapcat #(map :type (:args %)) (:methods class)))
+       (filter class-type?)
+       (map str)))
+
+(defn- nodes
+  "Returns every node within a class, including the class itself."
+  [class]
+  (tree-seq #(or (ast/context %) (sequential? %))
+            #(if (ast/context %)
+               (vals (dissoc % :line :column :origin))
+               (seq %))
+            class))
+
+(defn- body-types
+  "Returns the names of the classes named anywhere within a class, outside
+  of its signature."
+  [class]
+  (->> (nodes class)
+       (mapcat (fn [node]
+                 (cond
+                  (instance? ObjectInstantiationExpression node)
+                  [(:type node)]
+
+                  (#{:var-declaration :formal-parameter} (ast/context node))
+                  [(:type node)])))
+       (filter class-type?)
+       (map str)))
+
+(defn- dependencies
+  "Returns the set of names of the classes which the named class depends
+  on, given a map of every class by name."
+  [name classes]
+  (let [class (classes name)]
+    (loop [seen    #{}
+           pending (concat (signature-types class) (body-types class))]
+      (if-let [[dep & pending] (seq pending)]
+        (if (seen dep)
+          (recur seen pending)
+          (recur (conj seen dep)
+                 (concat pending
+                         (some-> (classes dep) signature-types))))
+        seen))))
+
+(defn- called-methods
+  "Returns the set of names of the methods called anywhere within a class."
+  [class]
+  (set (for [node (nodes class)
+             :when (instance? MethodCallExpression node)]
+         (str (:method node)))))
+
+(defn- callees
+  "Returns the name of each class which the named class depends on, with
+  the name and hash of each of its methods which the named class may call,
+  and so may have inlined."
+  [name dependencies classes]
+  (let [called (called-methods (classes name))]
+    (vec (for [dep    (sort dependencies)
+               method (:methods (classes dep))
+               :when  (called (str (:name method)))]
+           [dep (str (:name method)) (fingerprint (strip method))]))))
+
+(defn- by-name
+  "Returns a map of every class in the given ASTs by name. When two classes
+  share a name, the first is used, as in the class table."
+  [asts]
+  (reduce (fn [m class]
+            (let [name (str (:name class))]
+              (if (m name) m (assoc m name class))))
+          {}
+          (mapcat #(cons (:main %) (:classes %)) asts)))
+
+(defn class-keys
+  "Returns a map from the name of every class in the given ASTs to its key.
+  The salt is any data which affects the code generated for every class,
+  such as the optimization level, and is part of every key. When the whole
+  program is analyzed, the keys also cover the hierarchy, and the methods
+  which may be inlined."
+  [asts salt whole-program?]
+  (let [classes    (by-name asts)
+        signatures (into {} (for [[name class] classes]
+                              [name (fingerprint (signature class))]))
+        hierarchy  (when whole-program?
+                     (fingerprint (sort (vals signatures))))]
+    (into {} (for [[name class] classes
+                   :let [dependencies (dependencies name classes)]]
+               [name (fingerprint
+                      [version
+                       salt
+                       hierarchy
+                       (fingerprint (strip class))
+                       (->> dependencies
+                            sort
+                            (mapv (juxt identity signatures)))
+                       (when whole-program?
+                         (callees name dependencies classes))])]))))
+
+(defn inlined-from
+  "Returns the set of names of the classes in the given ASTs whose methods
+  may be inlined into any of the named classes, which must be checked for
+  them to be, whether or not they have changed."
+  [asts names]
+  (let [classes (by-name asts)]
+    (set (mapcat #(dependencies % classes) names))))
+
+(defn read-cache
+  "Reads the cache of the given output directory, returning an empty cache
+  if there is none, or it is from another version."
+  [directory]
+  (let [file (io/file directory cache-name)]
+    (or (when (.isFile file)
+          (let [cache (try
+                        (edn/read-string (slurp file))
+                        (catch RuntimeException e
+                          nil))]
+            (when (= version (:version cache))
+              cache)))
+        {:version version, :classes {}})))
+
+(defn fresh
+  "Returns the set of names of the classes whose cached key matches the
+  given key, and whose class file is still the one which was written."
+  [cache keys directory]
+  (set (for [[name key] keys
+             :let [entry (get-in cache [:classes name])
+                   file  (io/file directory (str name ".class"))]
+             :when (and (= key (:key entry))
+                        (.isFile file)
+                        (= (:hash entry)
+                           (util/sha-1 (util/read-bytes file))))]
+         name)))
+
+(defn delete-removed!
+  "Deletes the class file of each class recorded in the cache of the given
+  output directory which is no longer among the given keys, as when its
+  class was deleted or renamed. A class file is only deleted while it is
+  still the one which was written, so that files written by anything else
+  are left alone. The cache entries of those classes are dropped when the
+  cache is next written."
+  [directory cache keys]
+  (doseq [[name entry] (:classes cache)
+          :when (not (contains? keys name))
+          :let  [file (io/file directory (str name ".class"))]
+          :when (and (.isFile file)
+                     (= (:hash entry) (util/sha-1 (util/read-bytes file))))]
+    (io/delete-file file)))
+
+(defn write-cache!
+  "Records the keys and class file hashes of the classes of a successful
+  compilation in the cache of the given output directory. The hashes of the
+  classes which were just written are given, and those of the classes which
+  were fresh are taken from the previous cache. The cache is only rewritten
+  when it changes."
+  [directory cache keys hashes]
+  (let [file    (io/file directory cache-name)
+        hash-of (fn [name key]
+                  (or (hashes name)
+                      (let [entry (get-in cache [:classes name])]
+                        (when (= key (:key entry))
+                          (:hash entry)))))
+        text    (pr-str {:version version,
+                         :classes (into (sorted-map)
+                                        (for [[name key] keys
+                                              :let [hash (hash-of name key)]
+                                              :when hash]
+                                          [name {:key key, :hash hash}]))})]
+    (when-not (and (.isFile file) (= text (slurp file)))
+      (spit file text))))
@@ -0,0 +1,244 @@
+(ns mini-java.cfg
+  "Builds the control-flow graph of a method, and solves dataflow problems
+  over it with bit sets.
+
+  A graph is a vector of nodes. The entry and exit of the method are always
+  the first two nodes, followed by a node for each simple statement
+  (assignments, prints, returns and recurs), and a branch node for the
+  predicate of each if and while statement. Blocks of nested statements have
+  no nodes of their own. Each node holds the AST node it stands for under
+  :node, the variables it reads and writes under :reads and :write, and the
+  indices of its successors and predecessors under :succs and :preds.
+
+  Dataflow facts are java.util.BitSets with a bit per variable, so that the
+  meet and transfer of a fact take a few word operations, however many
+  variables a method has."
+  (:require [mini-java.ast  :as ast]
+            [mini-java.util :as util])
+  (:import [java.util ArrayDeque BitSet]
+           [mini_java.ast
+            NestedStatement IfElseStatement WhileStatement PrintStatement
+            AssignStatement ArrayAssignStatement ReturnStatement
+            RecurStatement IdentifierExpression]))
+
+(def entry
+  "The index of the entry node of every graph."
+  0)
+
+(def exit
+  "The index of the exit node of every graph."
+  1)
+
+(defn- reads
+  "Returns the nodes within the given expressions which read a variable, in
+  the order in which they are evaluated."
+  [& expressions]
+  (->> expressions
+       (mapcat #(tree-seq (fn [node] (or (ast/context node) (sequential? node)))
+                          (fn [node] (if (ast/context node)
+                                       (vals (dissoc node :line :column))
+                                       (seq node)))
+                          %))
+       (filter #(instance? IdentifierExpression %))))
+
+(defn variable
+  "Returns the name of the variable read by a node in the :reads of a graph
+  node."
+  [node]
+  (if (instance? IdentifierExpression node)
+    (:id node)
+    (:target node)))
+
+(defn- add-node
+  "Adds a node of the given kind to the graph, standing for the given AST
+  node. Returns the new graph, along with the index of the node."
+  [graph kind node succs & {:keys [reads write]}]
+  [(conj graph {:kind  kind,
+                :node  node,
+                :reads (vec reads),
+                :write write,
+                :succs (vec succs)})
+   (count graph)])
+
+(defprotocol Flow
+  (build [statement graph succ]
+    "Adds the nodes of a statement to the graph, with control flowing to the
+    node succ once the statement completes. Returns the new graph, along with
+    the index of the node at which the statement begins."))
+
+(defn- build-statements
+  "Adds the nodes of a sequence of statements to the graph, each flowing to
+  the next, and the last to succ."
+  [statements graph succ]
+  (reduce (fn [[graph succ] statement]
+            (build statement graph succ))
+          [graph succ]
+          (reverse statements)))
+
+(extend-protocol Flow
+  NestedStatement
+  (build [statement graph succ]
+    (build-statements (:statements statement) graph succ))
+
+  IfElseStatement
+  (build [statement graph succ]
+    (let [[graph then] (build (:then statement) graph succ)
+          [graph else] (build (:else statement) graph succ)]
+      (add-node graph :branch statement [then else]
+                :reads (reads (:pred statement)))))
+
+  WhileStatement
+  (build [statement graph succ]
+    "The predicate is tested before each iteration, so the body flows back to
+    it."
+    (let [[graph pred] (add-node graph :branch statement []
+                                 :reads (reads (:pred statement)))
+          [graph body] (build (:body statement) graph pred)]
+      [(assoc-in graph [pred :succs] [body succ]) pred]))
+
+  PrintStatement
+  (build [statement graph succ]
+    (add-node graph :statement statement [succ]
+              :reads (reads (:arg statement))))
+
+  AssignStatement
+  (build [statement graph succ]
+    (add-node graph :statement statement [succ]
+              :reads (reads (:source statement))
+              :write (:target statement)))
+
+  ArrayAssignStatement
+  (build [statement graph succ]
+    "The array itself is read, before the index and the value."
+    (add-node graph :statement statement [succ]
+              :reads (cons statement (reads (:index  statement)
+                                            (:source statement)))))
+
+  ReturnStatement
+  (build [statement graph succ]
+    (add-node graph :statement statement [exit]
+              :reads (reads (:return-value statement))))
+
+  RecurStatement
+  (build [statement graph succ]
+    "Either the arguments are rebound and the method starts over, or the base
+    case is returned."
+    (add-node graph :statement statement [entry exit]
+              :reads (apply reads (:pred statement) (:base statement)
+                            (:args statement)))))
+
+(defn- with-preds
+  "Adds the predecessors of each node to the graph."
+  [graph]
+  (let [preds (reduce (fn [preds [i node]]
+                        (reduce #(update-in %1 [%2] conj i)
+                                preds (:succs node)))
+                      (vec (repeat (count graph) []))
+                      (map-indexed vector graph))]
+    (mapv #(assoc %1 :preds %2) graph preds)))
+
+(defn method-graph
+  "Builds the control-flow graph of a method of the class table. The body
+  of the main method is a single statement, and that of any other method is
+  a vector of them."
+  [method]
+  (let [body  (:body method)
+        graph [{:kind :entry} {:kind :exit, :succs []}]
+        [graph start] (if (sequential? body)
+                        (build-statements body graph exit)
+                        (build body graph exit))]
+    (with-preds (assoc-in graph [entry :succs] [start]))))
+
+(defn solve
+  "Solves a dataflow problem over the graph, iterating with a worklist until
+  a fixed point is reached. The problem is described by a map of:
+
+    :direction  :forward or :backward
+    :meet       :union or :intersection, which combines the facts flowing
+                into a node along each of its edges
+    :size       the number of bits in a fact
+    :boundary   the fact flowing into the entry (or, backwards, the exit)
+    :transfer   a function of a node and the fact flowing into it, which
+                updates the fact in place, and returns it
+
+  Returns a map holding vectors of the facts flowing into, and out of, each
+  node, in the direction of the problem, under :in and :out."
+  [graph {:keys [direction meet size ^BitSet boundary transfer]}]
+  (let [n        (count graph)
+        forward? (= :forward direction)
+        start    (if forward? entry exit)
+        sources  (if forward? :preds :succs)
+        sinks    (if forward? :succs :preds)
+        union?   (= :union meet)
+        top      (fn []
+                   (if union?
+                     (new BitSet (int size))
+                     (doto (new BitSet (int size)) (.set 0 (int size)))))
+        ins      (object-array n)
+        outs     (object-array (repeatedly n top))
+        work     (new ArrayDeque ^java.util.Collection (range n))
+        queued   (doto (new BitSet (int n)) (.set 0 (int n)))]
+    (loop []
+      (when-let [i (.poll work)]
+        (.clear queued (int i))
+        (let [node   (graph i)
+              ^BitSet in (reduce (fn [^BitSet in j]
+                                   (let [^BitSet out (aget outs j)]
+                                     (if union?
+                                       (.or  in out)
+                                       (.and in out)))
+                                   in)
+                                 (if (= start i)
+                                   (.clone boundary)
+                                   (top))
+                                 (sources node))
+              ^BitSet out (transfer node (.clone in))]
+          (aset ins i in)
+          (when-not (= out (aget outs i))
+            (aset outs i out)
+            (doseq [j (sinks node)
+                    :when (not (.get queued (int j)))]
+              (.set queued (int j))
+              (.add work j))))
+        (recur)))
+    {:in  (vec ins),
+     :out (vec outs)}))
+
+(defn definite-assignment
+  "Performs definite assignment analysis on a method of the class table.
+  Returns the nodes which read a local variable of the method when it might
+  not have been assigned yet.
+
+  Once a variable has been read, it is treated as assigned from then on,
+  so that each path only reports it the first time it is read."
+  [method]
+  (let [locals   (->> (util/in-source-order (:vars method))
+                      (filter #(= :var-declaration (ast/context %)))
+                      (map :name))
+        index    (zipmap locals (range))
+        graph    (method-graph method)
+        assign!  (fn [^BitSet fact name]
+                   (when-let [i (index name)]
+                     (.set fact (int i))))
+        {:keys [in]}
+        (solve graph {:direction :forward,
+                      :meet      :intersection,
+                      :size      (count locals),
+                      :boundary  (new BitSet),
+                      :transfer  (fn [node fact]
+                                   (doseq [read (:reads node)]
+                                     (assign! fact (variable read)))
+                                   (assign! fact (:write node))
+                                   fact)})]
+    (when (seq locals)
+      (mapcat (fn [node ^BitSet in]
+                (let [fact ^BitSet (.clone in)]
+                  (reduce (fn [unassigned read]
+                            (let [i (index (variable read))]
+                              (if (and i (not (.get fact (int i))))
+                                (do (.set fact (int i))
+                                    (conj unassigned read))
+                                unassigned)))
+                          []
+                          (:reads node))))
+              graph in))))
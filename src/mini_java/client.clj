@@ -0,0 +1,70 @@
+(ns mini-java.client
+  "A thin client for the compile server in mini-java.server. It forwards its
+  command line arguments and working directory to the server, prints the
+  output of the compilation, and exits with its status.
+
+  The client deliberately requires nothing from the compiler, so that it
+  starts as quickly as Clojure itself does. The port is taken from the
+  MINI_JAVAC_PORT environment variable, if it is set, and each request
+  carries the token the server wrote to its token file."
+  (:require [clojure.edn     :as edn]
+            [clojure.java.io :as io])
+  (:import [java.net ConnectException InetAddress Socket]))
+
+(def ^:private default-port
+  ;; kept in sync with mini-java.server/default-port, which is not required
+  ;; in order to avoid loading the compiler
+  7463)
+
+(defn- token-file
+  ;; kept in sync with mini-java.server/token-file
+  [port]
+  (io/file (System/getProperty "mini-javac.token-dir"
+                               (System/getProperty "user.home"))
+           (str ".mini-javac-" port ".token")))
+
+(defn request
+  "Sends a request to the server on the given port, along with the server's
+  token, and returns its response."
+  [port request]
+  (let [file    (token-file port)
+        request (assoc request :token (when (.isFile file)
+                                        (.trim ^String (slurp file))))]
+    (with-open [socket (new Socket (InetAddress/getLoopbackAddress)
+                            (int port))
+                reader (io/reader socket)
+                writer (io/writer socket)]
+      (binding [*out* writer]
+        (prn request))
+      (.flush writer)
+      (edn/read-string (.readLine reader)))))
+
+(defn -main
+  "Forwards the arguments to the server. The arguments --stats and --stop
+  alone request the server's statistics, or stop it, instead."
+  [& args]
+  (let [port     (if-let [port (System/getenv "MINI_JAVAC_PORT")]
+                   (Integer/parseInt port)
+                   default-port)
+        response (try
+                   (request port
+                            (case (vec args)
+                              ["--stats"] {:op :stats}
+                              ["--stop"]  {:op :stop}
+                              {:op   :compile,
+                               :args (vec args),
+                               :cwd  (System/getProperty "user.dir")}))
+                   (catch ConnectException e
+                     {:err  (str "no mini-javac server on port " port "\n"),
+                      :exit 1}))]
+    ;; diagnostics come before the count of errors printed after them, as
+    ;; they do when compiling directly
+    (when-let [err (not-empty (:err response))]
+      (binding [*out* *err*]
+        (print err)
+        (flush)))
+    (when-let [out (not-empty (:out response))]
+      (print out)
+      (when-not (.endsWith ^String out "\n") (newline))
+      (flush))
+    (System/exit (:exit response))))
@@ -1,26 +1,59 @@
 (ns mini-java.core
   "Parses command line arguments and performs the compilation process."
-  (:require [mini-java.parser           :as    parser]
+  (:require [mini-java.cache            :as    cache]
+            [mini-java.parser           :as    parser]
             [mini-java.static-semantics :as    static-semantics]
             [mini-java.code-gen         :as    code-gen]
+            [mini-java.diagnostics      :as    diagnostics]
+            [mini-java.incremental      :as    incremental]
+            [mini-java.input            :as    input]
+            [mini-java.optimize         :as    optimize]
+            [mini-java.symbols          :as    symbols]
+            [clojure.java.io            :as    io]
             [clojure.tools.cli          :refer [parse-opts]])
   (:gen-class))
 
 (def cli-options
   [["-d" "--directory DIR" "Destination directory for class files"
-    :validate [#(.exists (clojure.java.io/file %))
+    :validate [#(.exists (input/file %))
                "Must be an existing directory"]
     :default "."]
    [nil "--syntax"
     "Stop after syntax checking"]
    [nil "--static-semantics"
     "Stop after static semantics checking"]
+   [nil "--unbuffered"
+    "Stream the source through sliding windows instead of buffering it"]
+   [nil "--max-errors N" "Maximum number of errors to output"
+    :parse-fn #(Integer/parseInt %)
+    :validate [pos? "Must be a positive number"]
+    :default diagnostics/default-max-errors]
+   [nil "--diagnostics FORMAT" "Error output format: text, json or sarif"
+    :validate [diagnostics/formats "Must be one of text, json or sarif"]
+    :default "text"]
+   [nil "--diagnostics-file FILE" "Write errors to FILE instead of stderr"]
+   [nil "--incremental"
+    "Only check and generate classes changed since the last compilation"]
+   ["-O" "--optimize LEVEL" "Optimization level: 0, 1 or 2"
+    :parse-fn #(Integer/parseInt %)
+    :validate [optimize/levels "Must be 0, 1 or 2"]
+    :default 0]
+   [nil "--time-passes"
+    "Print the time taken by each code generation pass"]
+   ["-j" "--jobs N" "Number of files to parse, or classes to check, at once"
+    :parse-fn #(Integer/parseInt %)
+    :validate [pos? "Must be a positive number"]
+    :default (.availableProcessors (Runtime/getRuntime))
+    :default-desc "processors"]
    ["-h" "--help"]])
 
 (defn usage
   "Formats cli usage summary message."
   [options-summary]
-  (->> ["Usage: mini-javac [options] filename"
+  (->> ["Usage: mini-javac [options] file-or-directory..."
+        ""
+        "Directories are searched for .java files, and all files are compiled"
+        "together. Use - as a filename to read from standard input."
         ""
         "Options:"
         options-summary]
@@ -36,54 +69,170 @@
   "Exits the program, with an optional exit status and message.
   Default exit status is 0."
   ([]
-     (System/exit 0))
+     (exit 0))
   ([status]
      (System/exit status))
   ([status msg]
      (println msg)
      (System/exit status)))
 
+(defn- make-reporter
+  "Creates the diagnostics reporter described by the command line options."
+  [options]
+  (let [{format :diagnostics
+         file   :diagnostics-file
+         max    :max-errors} options]
+    (if file
+      (diagnostics/reporter format max
+                            (io/writer (input/file file)))
+      (diagnostics/reporter format max))))
+
 (defn errors-occured [n]
   (str n " error"
        (if (= 1 n) "" "s")
        " occurred."))
 
-(defn -main
-  "Parse the command line arguments and perform the compilation."
-  [& args]
+(defn- print-error-count
+  "Prints the number of errors which occurred, after finishing the current
+  reporter, so that the count follows the diagnostics it counts."
+  [n]
+  (diagnostics/finish!)
+  (println (errors-occured n)))
+
+(defn- in-file-order
+  "Stably sorts diagnostics into the order in which their source files were
+  parsed."
+  [diagnostics parsed]
+  (let [order (zipmap (map (comp :name second) parsed) (range))]
+    (sort-by (comp order :name :source) diagnostics)))
+
+(defn compile-files
+  "Compiles the given files and directories with the given options,
+  reporting diagnostics to the current reporter, and returns the exit
+  status."
+  [options arguments]
+  (let [source-files (input/source-files arguments)
+        ;; when parsed sources are kept between compilations, identifiers
+        ;; are interned in their symbol table, otherwise once for the whole
+        ;; compilation
+        store        incremental/*sources*
+        symbols      (if store
+                       (:symbols @store)
+                       (symbols/symbol-table))
+        ;; parse ASTs from source files, in parallel
+        parsed       (parser/parse-files source-files
+                                         (:unbuffered options)
+                                         symbols
+                                         (:jobs options)
+                                         (if store
+                                           (incremental/source-parser store)
+                                           parser/mini-java))
+        ;; the store forgets the files which are no longer compiled
+        _            (when store
+                       (incremental/retain! store source-files))
+        errors       (reduce + (map #(nth % 2) parsed))]
+    ;; report syntax errors file by file
+    (doseq [[_ _ _ diagnostics] parsed]
+      (diagnostics/replay! diagnostics))
+    (cond
+     ;; stop if there are syntax errors
+     (pos? errors)
+     (do (print-error-count errors)
+         1)
+     ;; stop if only syntax checking is requested
+     (:syntax options)
+     0
+
+     :else
+     ;; perform static semantics checking on all files together, skipping
+     ;; the classes which the cache shows are unchanged
+     (let [directory  (input/file (:directory options))
+           asts       (map first parsed)
+           level      (:optimize options)
+           class-keys (when (:incremental options)
+                        (cache/class-keys asts level
+                                          (optimize/whole-program? level)))
+           cache      (when class-keys
+                        (cache/read-cache directory))
+           fresh      (if class-keys
+                        (cache/fresh cache class-keys directory)
+                        #{})
+           ;; when the whole program is analyzed, a stale class may inline
+           ;; the checked methods of the classes it depends on, so those are
+           ;; checked too
+           skip?      (comp (if (optimize/whole-program? level)
+                              (->> (keys class-keys)
+                                   (remove fresh)
+                                   (cache/inlined-from asts)
+                                   (apply disj fresh))
+                              fresh)
+                            str :name)
+           [class-table diagnostics]
+           (static-semantics/class-table asts
+                                         {:skip? skip?,
+                                          :jobs  (:jobs options)})]
+       (diagnostics/replay! (in-file-order diagnostics parsed))
+       (cond
+        ;; stop if there are semantic errors
+        (seq diagnostics)
+        (do (print-error-count (count diagnostics))
+            1)
+        ;; stop if only static semantics checking is requested
+        (:static-semantics options)
+        0
+
+        :else
+        ;; generate bytecode and write to files in the given directory
+        (let [context (optimize/context class-table (:optimize options))
+              hashes  (code-gen/write-classes
+                       class-table directory
+                       {:names    (when class-keys
+                                    (set (remove fresh (keys class-keys)))),
+                        :optimize context})]
+          (when class-keys
+            (cache/delete-removed! directory cache class-keys)
+            (cache/write-cache! directory cache class-keys hashes))
+          (when (:time-passes options)
+            (binding [*out* *err*]
+              (println (optimize/timings-report context))))
+          0))))))
+
+(defn run
+  "Parses the command line arguments and performs the compilation, writing
+  messages to *out* and diagnostics to *err* or the diagnostics file.
+  Returns the exit status, rather than exiting, so that it can also be run
+  by the compile server."
+  [args]
   (let [{:keys [options arguments errors summary]}
         (parse-opts args cli-options)]
-    ;; check for anything which might cause the program to exit before
-    ;; parsing the source file
+    ;; check for anything which might stop the compilation before
+    ;; parsing the source files
     (cond
      ;; print help message
-     (:help options) (exit 0 (usage summary))
-     ;; only one positional argument is expected
-     (not= (count arguments) 1) (exit 1 (usage summary))
+     (:help options)
+     (do (println (usage summary))
+         0)
+     ;; at least one positional argument is expected
+     (empty? arguments)
+     (do (println (usage summary))
+         1)
      ;; errors in parsing command line options
-     errors (exit 1 (error-msg errors)))
+     errors
+     (do (println (error-msg errors))
+         1)
 
-    ;; begin compilation process
-    (let [source-file (first arguments)
-          ;; parse AST from source file
-          [ast parser errors] (parser/mini-java source-file)]
-      ;; exit if there are syntax errors
-      (when (pos? errors)
-        (exit 1 (errors-occured errors)))
-      ;; exit if only syntax checking is requested
-      (when (:syntax options)
-        (exit 0))
-      
-      ;; perform static semantics checking
-      (let [[class-table errors]
-            (static-semantics/class-table ast parser)]
-        ;; exit if there are semantic errors
-        (when-not (zero? errors)
-          (exit 1 (errors-occured errors)))
-        ;; exit if only static semantics checking is requested
-        (when (:static-semantics options)
-          (exit 0))
-        ;; generate bytecode and write to files in the given directory
-        (code-gen/write-classes class-table
-                                (:directory options)))))
-  nil)
+     :else
+     ;; begin compilation process
+     (let [reporter (make-reporter options)]
+       (try
+         (binding [diagnostics/*reporter* reporter]
+           (compile-files options arguments))
+         (finally
+           (diagnostics/finish! reporter)
+           (when (:diagnostics-file options)
+             (.close ^java.io.Writer (:writer reporter)))))))))
+
+(defn -main
+  "Parse the command line arguments and perform the compilation."
+  [& args]
+  (exit (run args)))
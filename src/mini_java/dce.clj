@@ -0,0 +1,131 @@
+(ns mini-java.dce
+  "Eliminates dead code from the IR of a method: the blocks which cannot be
+  reached, and the stores to locals which are never read afterwards.
+
+  Liveness is solved over the blocks of the method with mini-java.cfg, as a
+  backward union problem with a bit per slot. A dead store is only removed
+  when its value is pure, so that removing it cannot lose a call or an
+  exception. Removing a store may leave the stores feeding its value dead
+  in turn, so the pass repeats until none are left."
+  (:require [mini-java.cfg      :as cfg]
+            [mini-java.ir       :as ir]
+            [mini-java.simplify :as simplify])
+  (:import [java.util BitSet]))
+
+(defn- block-graph
+  "Builds a graph of the blocks of a method, in the form solved by
+  mini-java.cfg: the entry and exit nodes, followed by a node for each
+  block in the order of the layout, which holds it under :block. Blocks
+  which return flow to the exit."
+  [method]
+  (let [layout (:layout method)
+        index  (zipmap layout (range 2 (+ 2 (count layout))))
+        nodes  (for [label layout
+                     :let [block ((:blocks method) label)]]
+                 {:kind  :block,
+                  :block block,
+                  :succs (if (= :return (-> block :exit :op))
+                           [cfg/exit]
+                           (mapv index (ir/successors block)))})
+        graph  (into [{:kind :entry, :succs [(index (:entry method))]}
+                      {:kind :exit,  :succs []}]
+                     nodes)
+        preds  (reduce (fn [preds [i node]]
+                         (reduce #(update-in %1 [%2] conj i)
+                                 preds (:succs node)))
+                       (vec (repeat (count graph) []))
+                       (map-indexed vector graph))]
+    (mapv #(assoc %1 :preds %2) graph preds)))
+
+(defn- read!
+  "Marks each local read by an expression as live."
+  [^BitSet live expression]
+  (when (= :local (:op expression))
+    (.set live (int (:slot expression))))
+  (doseq [subexpression (ir/subexpressions expression)]
+    (read! live subexpression)))
+
+(defn- transfer!
+  "Updates the live locals from after a statement or exit to before it."
+  [^BitSet live statement]
+  (case (:op statement)
+    :store  (.clear live (int (:slot statement)))
+    :rebind (doseq [slot (:slots statement)]
+              (.clear live (int slot)))
+    nil)
+  (doseq [expression (ir/statement-expressions statement)]
+    (read! live expression))
+  live)
+
+(defn- liveness
+  "Returns a map from the label of each block of a method to the locals
+  which are live on exit from it."
+  [method]
+  (let [graph (block-graph method)
+        {:keys [in]}
+        (cfg/solve graph
+                   {:direction :backward,
+                    :meet      :union,
+                    :size      (:slots method),
+                    :boundary  (new BitSet),
+                    :transfer  (fn [node ^BitSet live]
+                                 (when-let [block (:block node)]
+                                   (transfer! live (:exit block))
+                                   (doseq [statement (rseq (:code block))]
+                                     (transfer! live statement)))
+                                 live)})]
+    (into {} (for [[node live] (map vector graph in)
+                   :when (:block node)]
+               [(-> node :block :label) live]))))
+
+(defn- sweep-statement
+  "Removes the dead part of a statement, given the locals live after it.
+  Returns nil if all of it is dead."
+  [statement ^BitSet live]
+  (let [dead? (fn [slot value]
+                (and (not (.get live (int slot))) (ir/pure? value)))]
+    (case (:op statement)
+      :store
+      (when-not (dead? (:slot statement) (:value statement))
+        statement)
+
+      :rebind
+      (let [kept (remove (partial apply dead?)
+                         (map vector (:slots statement) (:values statement)))]
+        (when (seq kept)
+          (assoc statement
+            :slots  (mapv first  kept)
+            :values (mapv second kept))))
+
+      statement)))
+
+(defn- sweep-block
+  "Removes the dead stores of a block, given the locals live on exit from
+  it, walking back from its exit."
+  [block ^BitSet live]
+  (let [live (transfer! (.clone live) (:exit block))
+        code (reduce (fn [code statement]
+                       (if-let [statement (sweep-statement statement live)]
+                         (do (transfer! live statement)
+                             (conj code statement))
+                         code))
+                     ()
+                     (rseq (:code block)))]
+    (assoc block :code (vec code))))
+
+(defn- remove-dead-stores
+  [method]
+  (let [live   (liveness method)
+        blocks (into {} (for [[label block] (:blocks method)]
+                          [label (sweep-block block (live label))]))]
+    (if (= blocks (:blocks method))
+      method
+      (recur (assoc method :blocks blocks)))))
+
+(defn eliminate-dead-code
+  "Removes the unreachable blocks of a method, and then the stores of pure
+  values to locals which are never read afterwards."
+  [method context]
+  (-> method
+      simplify/remove-unreachable
+      remove-dead-stores))
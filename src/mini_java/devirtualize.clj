@@ -0,0 +1,26 @@
+(ns mini-java.devirtualize
+  "Turns the calls of a method into direct calls, where the analysis of the
+  class hierarchy shows they can only have one target."
+  (:require [mini-java.hierarchy :as hierarchy]
+            [mini-java.ir        :as ir]))
+
+(defn- devirtualize-call
+  "Makes a call refer to the class which declares its target, when no
+  subclass of that class overrides it. The method is then final, so the
+  call is bound to it when linked, rather than looked up at each call."
+  [call class-table analysis]
+  (let [name  (:name call)
+        owner (hierarchy/declaring-class class-table (:owner call) name)]
+    (if (and owner (hierarchy/final-method? analysis owner name))
+      (assoc call :owner owner, :direct true)
+      call)))
+
+(defn devirtualize
+  "Makes each call of a method to a method which is never overridden a
+  direct call."
+  [method context]
+  (let [{:keys [class-table hierarchy]} context]
+    (ir/map-expressions #(if (= :call (:op %))
+                           (devirtualize-call % class-table hierarchy)
+                           %)
+                        method)))
@@ -0,0 +1,203 @@
+(ns mini-java.diagnostics
+  "Collects and outputs compiler diagnostics.
+
+  A diagnostic is a hash-map describing a single error, containing the source
+  it occurred in, its line and column, its message, and optionally the
+  required and found types, or the missing symbol and its location.
+
+  Diagnostics are written to a reporter, which renders them either as text,
+  in the style of javac, or as JSON or SARIF for consumption by other tools.
+  Output goes through a buffered writer, and only the first max-errors
+  diagnostics are written, as errors past that point are usually cascading
+  from earlier ones."
+  (:require [mini-java.input   :as input]
+            [clojure.data.json :as json])
+  (:import [java.io BufferedWriter Writer]))
+
+(def ^:dynamic *reporter*
+  "The reporter which diagnostics are written to. When unbound, diagnostics
+  are written to *err* as text as soon as they are reported."
+  nil)
+
+(def default-max-errors
+  "The default number of diagnostics to output before suppressing the rest."
+  100)
+
+(def formats
+  "The supported output formats."
+  #{"text" "json" "sarif"})
+
+(defn underline-str
+  "Given a line with an error at the given index,
+  returns a string of whitespace ending with the ^ character, which
+  points to the error. Tabs are handled correctly.
+
+  For example, given the Java line:
+
+  int[] foo ;= 2;
+
+  returns
+            ^"
+  [error-line index]
+  (let [whitespace (filter #(Character/isWhitespace %)
+                           (take index error-line))
+        remaining  (- index (count whitespace))]
+    (str (clojure.string/join whitespace)
+         (clojure.string/join (repeat remaining " "))
+         "^")))
+
+(defn- write-line
+  "Writes the given string to the writer, followed by a newline."
+  [^Writer writer s]
+  (.write writer (str s))
+  (.write writer "\n"))
+
+(defn- write-text
+  "Writes a diagnostic in the style of javac. The line on which the error
+  occurred is printed and underlined with a ^, followed by any type or symbol
+  information."
+  [writer diagnostic]
+  (let [{:keys [source line column message
+                required found symbol location]} diagnostic]
+    (write-line writer (str (:name source) ":" line ": error: " message))
+    (if-let [error-line (input/source-line source line)]
+      ;; did not reach EOF, do a more descriptive underline
+      (do (write-line writer error-line)
+          (write-line writer (underline-str error-line column)))
+      ;; reached EOF, underline that
+      (write-line writer "<EOF>\n^"))
+    (when found
+      (write-line writer (str "  required: " required))
+      (write-line writer (str "  found:    " found)))
+    (when symbol
+      (write-line writer (str "  symbol:   variable " symbol))
+      (write-line writer (str "  location: class " location)))))
+
+(defn- json-diagnostic
+  "Returns the JSON representation of a diagnostic. Lines and columns both
+  start from 1."
+  [diagnostic]
+  (let [{:keys [source line column message]} diagnostic]
+    (merge {:file    (:name source),
+            :line    line,
+            :column  (inc column),
+            :message message}
+           (select-keys diagnostic [:required :found :symbol :location]))))
+
+(defn- sarif-result
+  "Returns the SARIF result object describing a diagnostic."
+  [diagnostic]
+  (let [{:keys [source line column message]} diagnostic
+        details (->> [:required :found :symbol :location]
+                     (keep (fn [k]
+                             (when-let [v (k diagnostic)]
+                               (str (name k) ": " v)))))]
+    {:level   "error",
+     :message {:text (clojure.string/join "\n" (cons message details))},
+     :locations
+     [{:physicalLocation
+       {:artifactLocation {:uri (:name source)},
+        :region           {:startLine   line,
+                           :startColumn (inc column)}}}]}))
+
+(defn- sarif-log
+  "Returns a SARIF 2.1.0 log containing a single run with the given results."
+  [results]
+  {:version "2.1.0",
+   :$schema "https://json.schemastore.org/sarif-2.1.0.json",
+   :runs    [{:tool    {:driver {:name           "mini-javac",
+                                  :informationUri
+                                  "https://github.com/dwysocki/mini-java"}},
+              :results results}]})
+
+(defn reporter
+  "Creates a reporter which renders diagnostics in the given format, writing
+  them to the given writer, or *err* if none is given.
+
+  Text is written as soon as it is reported, while JSON and SARIF are written
+  as a single document once the reporter is finished."
+  ([format max-errors]
+     (reporter format max-errors *err*))
+  ([format max-errors writer]
+     {:format     (keyword format),
+      :max-errors max-errors,
+      :writer     (new BufferedWriter writer 65536),
+      :count      (atom 0),
+      :entries    (atom []),
+      :finished   (atom false)}))
+
+(defn report!
+  "Reports a diagnostic to the given reporter, or the current reporter.
+  Diagnostics beyond the reporter's maximum are counted, but not written."
+  ([diagnostic]
+     (report! *reporter* diagnostic))
+  ([reporter diagnostic]
+     (if-let [{:keys [format max-errors writer count entries]} reporter]
+       (if (= :collect format)
+         (swap! entries conj diagnostic)
+         (locking writer
+           (when (< @count max-errors)
+             (case format
+               :text  (write-text writer diagnostic)
+               :json  (swap! entries conj (json-diagnostic diagnostic))
+               :sarif (swap! entries conj (sarif-result diagnostic))))
+           (swap! count inc)))
+       (binding [*out* *err*]
+         (write-text *out* diagnostic)
+         (flush)))))
+
+(defn collector
+  "Creates a collector, a reporter which holds the diagnostics reported to
+  it in memory rather than writing them. Any number of threads may report
+  to a collector at once."
+  []
+  {:format  :collect,
+   :entries (atom [])})
+
+(defn collected
+  "Returns the diagnostics reported to the given collector, in the order
+  they were reported."
+  [collector]
+  @(:entries collector))
+
+(defn collect
+  "Calls f with no arguments, collecting every diagnostic reported to the
+  current reporter while it runs, rather than reporting them. Returns a
+  vector containing the result of f and the diagnostics, in the order they
+  were reported.
+
+  This allows diagnostics to be produced on several threads at once, and then
+  reported in a deterministic order with replay!."
+  [f]
+  (let [collector (collector)]
+    (binding [*reporter* collector]
+      (let [result (f)]
+        [result (collected collector)]))))
+
+(defn replay!
+  "Reports each of the given diagnostics, in order, to the current reporter."
+  [diagnostics]
+  (doseq [diagnostic diagnostics]
+    (report! diagnostic)))
+
+(defn finish!
+  "Writes anything the reporter has been holding back, and flushes its
+  writer. Does nothing if there is no reporter, or it is already finished,
+  so that it may be finished before a summary is printed after it, and
+  again once the compilation is over."
+  ([]
+     (finish! *reporter*))
+  ([{:keys [format max-errors writer count entries finished] :as reporter}]
+     (when (and reporter (compare-and-set! finished false true))
+       (locking writer
+         (case format
+           :text  (when (> @count max-errors)
+                    (write-line writer
+                                (str "only showing the first " max-errors
+                                     " errors, of " @count " total")))
+           :json  (do (json/write @entries writer :escape-slash false)
+                      (write-line writer ""))
+           :sarif (do (json/write (sarif-log @entries) writer
+                                  :escape-slash false)
+                      (write-line writer "")))
+         (.flush ^Writer writer)))))
@@ -0,0 +1,218 @@
+(ns mini-java.fold
+  "Folds constant expressions in the IR of a method, and propagates the
+  constants assigned to its locals to where they are read.
+
+  Integers are folded with the overflow of Java's 32-bit int arithmetic,
+  and && is folded as in Java, where the right operand is not evaluated
+  when the left is false. Once a branch tests a constant, it becomes a jump
+  to the only block it can lead to, and the other is left to be removed as
+  unreachable."
+  (:require [mini-java.ir :as ir]))
+
+(def ^:private varying
+  "The value of a local which may hold more than one value."
+  ::varying)
+
+(defn- constant
+  [type value]
+  {:op :const, :type type, :value value})
+
+(defn- constant?
+  ([expression]
+     (= :const (:op expression)))
+  ([expression value]
+     (and (constant? expression)
+          (= value (:value expression)))))
+
+(defn- fold-arithmetic
+  "Folds an arithmetic expression, whose operands have been folded."
+  [{:keys [op left right] :as expression}]
+  (cond
+   (and (constant? left) (constant? right))
+   (constant :int (let [a (int (:value left))
+                        b (int (:value right))]
+                    (case op
+                      :add (unchecked-add-int      a b)
+                      :sub (unchecked-subtract-int a b)
+                      :mul (unchecked-multiply-int a b))))
+
+   (and (#{:add :sub} op) (constant? right 0))
+   left
+
+   (and (= :add op) (constant? left 0))
+   right
+
+   (and (= :mul op) (constant? right 1))
+   left
+
+   (and (= :mul op) (constant? left 1))
+   right
+
+   (and (= :mul op)
+        (or (constant? left 0) (constant? right 0))
+        (ir/pure? left)
+        (ir/pure? right))
+   (constant :int (int 0))
+
+   :else
+   expression))
+
+(defn- fold-expression
+  "Folds an expression, given the values of the locals which hold a single
+  constant."
+  [expression env]
+  (let [fold #(fold-expression % env)]
+    (case (:op expression)
+      :local
+      (let [value (env (:slot expression))]
+        (if (and (some? value) (not= varying value))
+          (constant (:type expression) value)
+          expression))
+
+      (:add :sub :mul)
+      (fold-arithmetic (assoc expression
+                         :left  (fold (:left  expression))
+                         :right (fold (:right expression))))
+
+      :lt
+      (let [left  (fold (:left  expression))
+            right (fold (:right expression))]
+        (if (and (constant? left) (constant? right))
+          (constant :boolean (< (int (:value left)) (int (:value right))))
+          (assoc expression :left left :right right)))
+
+      :and
+      (let [left  (fold (:left  expression))
+            right (fold (:right expression))]
+        (cond
+         (constant? left false)                      left
+         (constant? left true)                       right
+         (constant? right true)                      left
+         (and (constant? right false) (ir/pure? left)) right
+         :else (assoc expression :left left :right right)))
+
+      :not
+      (let [operand (fold (:operand expression))]
+        (cond
+         (constant? operand)        (constant :boolean (not (:value operand)))
+         (= :not (:op operand))     (:operand operand)
+         :else                      (assoc expression :operand operand)))
+
+      :neg
+      (let [operand (fold (:operand expression))]
+        (if (constant? operand)
+          (constant :int (unchecked-negate-int (int (:value operand))))
+          (assoc expression :operand operand)))
+
+      (:array-load :array-length :new-array)
+      (reduce #(update-in %1 [%2] fold)
+              expression
+              (filter expression [:array :index :size]))
+
+      :call
+      (assoc expression
+        :receiver (fold (:receiver expression))
+        :args     (mapv fold (:args expression)))
+
+      :get-field
+      (if (:object expression)
+        (update-in expression [:object] fold)
+        expression)
+
+      (:const :this :new)
+      expression)))
+
+(defn- fold-statement
+  "Folds the expressions of a statement, and returns it along with the
+  values of the locals after it."
+  [statement env]
+  (let [fold #(fold-expression % env)
+        value-of #(if (constant? %) (:value %) varying)]
+    (case (:op statement)
+      :store
+      (let [value (fold (:value statement))]
+        [(assoc statement :value value)
+         (assoc env (:slot statement) (value-of value))])
+
+      :rebind
+      (let [values (mapv fold (:values statement))]
+        [(assoc statement :values values)
+         (into env (map vector (:slots statement) (map value-of values)))])
+
+      :array-store
+      [(assoc statement
+         :array (fold (:array statement))
+         :index (fold (:index statement))
+         :value (fold (:value statement)))
+       env]
+
+      (:put-field :print :check-null)
+      [(ir/map-statement-expressions fold statement) env])))
+
+(defn- fold-block
+  "Folds the statements and exit of a block, given the values of the locals
+  on entry to it. Returns the folded block, along with the values of the
+  locals on exit from it."
+  [block env]
+  (let [[code env] (reduce (fn [[code env] statement]
+                             (let [[statement env]
+                                   (fold-statement statement env)]
+                               [(conj code statement) env]))
+                           [[] env]
+                           (:code block))
+        exit       (:exit block)
+        exit       (case (:op exit)
+                     :goto   exit
+                     :return (if (:value exit)
+                               (update-in exit [:value] fold-expression env)
+                               exit)
+                     :branch (let [test (fold-expression (:test exit) env)]
+                               (if (constant? test)
+                                 {:op     :goto,
+                                  :target (if (:value test)
+                                            (:then exit)
+                                            (:else exit))}
+                                 (assoc exit :test test))))]
+    [(assoc block :code code :exit exit) env]))
+
+(defn- meet
+  "Combines the values of the locals flowing into a block along two edges.
+  A local missing from one has not been assigned along it, and since
+  locals are always assigned before they are read, takes its value from
+  the other."
+  [a b]
+  (merge-with #(if (= %1 %2) %1 varying) a b))
+
+(defn- propagate
+  "Finds the values of the locals on entry to each block of a method which
+  can be reached, iterating with a worklist until a fixed point is reached.
+  On entry to the method, the arguments may hold any value."
+  [method]
+  (let [blocks (:blocks method)
+        start  (:entry method)
+        args   (zipmap (range 1 (inc (count (:args method))))
+                       (repeat varying))]
+    (loop [ins  {start args}
+           work (conj clojure.lang.PersistentQueue/EMPTY start)]
+      (if-let [label (peek work)]
+        (let [[block out] (fold-block (blocks label) (ins label))
+              changed     (for [succ (ir/successors block)
+                                :let [in (if (contains? ins succ)
+                                           (meet (ins succ) out)
+                                           out)]
+                                :when (not= in (ins succ))]
+                            [succ in])]
+          (recur (into ins changed)
+                 (into (pop work) (map first changed))))
+        ins))))
+
+(defn fold-constants
+  "Propagates the constants held by locals, and folds constant expressions
+  and branches, in each block of a method which can be reached."
+  [method context]
+  (let [ins (propagate method)]
+    (assoc method
+      :blocks (into {} (for [[label block] (:blocks method)]
+                         [label (if-let [env (ins label)]
+                                  (first (fold-block block env))
+                                  block)])))))
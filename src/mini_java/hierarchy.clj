@@ -0,0 +1,59 @@
+(ns mini-java.hierarchy
+  "Analyzes the class hierarchy of a whole program, which MiniJava always
+  compiles as a closed world: every class which could extend another is in
+  the class table. The analysis finds the classes which nothing extends,
+  and the methods which nothing overrides, which may be declared final, so
+  that a call to such a method has a single target.")
+
+(defn- overridden
+  "Returns the set of pairs of the names of a class and a method declared
+  by it, such that some subclass also declares the method.
+
+  The classes declaring each method name are sorted by the start of their
+  interval in the walk of the hierarchy. The subclasses of a class are
+  visited within its interval, so if any of them declares the method, the
+  first one to do so after the class itself in that order does."
+  [class-table]
+  (let [declarers (reduce (fn [declarers class]
+                            (reduce #(update-in %1 [%2] conj class)
+                                    declarers
+                                    (keys (:methods class))))
+                          {}
+                          (vals class-table))]
+    (set (for [[method classes] declarers
+               [class next]     (partition 2 1 (sort-by :pre classes))
+               :when (< (:pre next) (:post class))]
+           [(:name class) method]))))
+
+(defn analyze
+  "Analyzes the hierarchy of a class table, which has been indexed during
+  static semantics. Returns a map of
+
+    :leaves      the set of names of the classes which no class extends
+    :overridden  the set of pairs of the names of a class and a method
+                 declared by it, which some subclass overrides"
+  [class-table]
+  (let [parents (set (keep :parent (vals class-table)))]
+    {:leaves     (set (remove parents (keys class-table))),
+     :overridden (overridden class-table)}))
+
+(defn leaf?
+  "Returns whether or not no class extends the named class."
+  [hierarchy class-name]
+  (contains? (:leaves hierarchy) class-name))
+
+(defn final-method?
+  "Returns whether or not no subclass of the named class overrides the
+  method it declares with the given name."
+  [hierarchy class-name method-name]
+  (not (contains? (:overridden hierarchy) [class-name method-name])))
+
+(defn declaring-class
+  "Returns the name of the class which declares the method of the given
+  name that the named class has, whether its own or inherited."
+  [class-table class-name method-name]
+  (loop [name class-name]
+    (when-let [class (class-table name)]
+      (if (contains? (:methods class) method-name)
+        name
+        (recur (:parent class))))))
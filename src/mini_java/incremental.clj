@@ -0,0 +1,314 @@
+(ns mini-java.incremental
+  "Re-parses a source incrementally as it is edited, at the granularity of
+  class declarations.
+
+  A parsed source is held in a hash-map, along with its text, its AST, and
+  the span of every class declaration in it, as found in its token stream.
+  When the text is edited, only the class declarations overlapping the edit
+  are re-lexed and re-parsed, starting from the line and column at which
+  they begin, and their new nodes are spliced into the :classes of the goal.
+  The classes after the edit are kept, with their lines shifted when the
+  edit adds or removes lines.
+
+  Only the lexing and parsing are proportional to the size of the classes
+  edited. Splicing the text, shifting the spans of the classes after the
+  edit, and, when lines are added or removed, the lines of every node of
+  those classes, all take time proportional to the size of the source, as
+  does finding the edit by comparing texts, below. These are much cheaper
+  than lexing and parsing, but an edit is not constant time.
+
+  Whenever an edit cannot be handled this way, because it touches the main
+  class, or anything before it, the edited classes no longer parse cleanly,
+  or the edit moves the column of the class following it, the whole source
+  is parsed again, which reports any syntax errors as usual.
+
+  The compile server keeps the parsed sources of the files it compiles in a
+  store, from one compilation to the next, and binds *sources* to it. The
+  edit made to a file since it was last compiled is found by reading and
+  decoding its whole text, and comparing it with the old text, from both
+  ends."
+  (:require [mini-java.ast     :as ast]
+            [mini-java.input   :as input]
+            [mini-java.parser  :as parser]
+            [mini-java.symbols :as symbols])
+  (:import [org.antlr.v4.runtime Token]))
+
+(defn- close-span
+  "Completes a class span with the position of its last token."
+  [span ^Token token offset]
+  (let [length (- (.getStopIndex token) (.getStartIndex token) -1)]
+    (assoc span
+      :stop       (+ offset (.getStopIndex token))
+      :end-line   (.getLine token)
+      :end-column (+ (.getCharPositionInLine token) length))))
+
+(defn- class-spans
+  "Splits a list of tokens into the spans of the top-level class declarations
+  they contain. Each span holds the offsets of the first and last characters
+  of the class, counted from the given offset, and the line and column just
+  past its last character."
+  [tokens offset]
+  (let [tokens (remove #(= Token/EOF (.getType ^Token %)) tokens)
+        [spans span last depth]
+        (reduce (fn [[spans span last depth] ^Token token]
+                  (let [text (.getText token)]
+                    [(if (and (zero? depth) (= "class" text) span)
+                       (conj spans (close-span span last offset))
+                       spans)
+                     (if (and (zero? depth) (= "class" text))
+                       {:start (+ offset (.getStartIndex token))}
+                       span)
+                     token
+                     (case text
+                       "{" (inc depth)
+                       "}" (dec depth)
+                       depth)]))
+                [[] nil nil 0]
+                tokens)]
+    (if span
+      (conj spans (close-span span last offset))
+      spans)))
+
+(defn- count-newlines
+  "Returns the number of newline characters in the string."
+  [^String s]
+  (loop [i 0, n 0]
+    (if (< i (.length s))
+      (recur (inc i) (if (= \newline (.charAt s i)) (inc n) n))
+      n)))
+
+(defn- column-at
+  "Returns the column of the character at the given offset in the string."
+  [^String s offset]
+  (- offset (.lastIndexOf s "\n" (int (dec offset))) 1))
+
+(defn- shift-lines
+  "Shifts the lines of the given node, and all of the nodes within it, by the
+  given number of lines. Method argument lists carry their position in
+  metadata, which is shifted too."
+  [node delta]
+  (cond
+   (zero? delta)
+   node
+
+   (ast/context node)
+   (reduce (fn [node [k v]]
+             (assoc node k (if (= :line k)
+                             (+ v delta)
+                             (shift-lines v delta))))
+           node node)
+
+   (vector? node)
+   (with-meta (mapv #(shift-lines % delta) node)
+     (when-let [m (meta node)]
+       (update-in m [:line] + delta)))
+
+   :else
+   node))
+
+(defn- shift-span
+  "Shifts a class span by the given number of characters and lines."
+  [span delta line-delta]
+  (-> span
+      (update-in [:start]    + delta)
+      (update-in [:stop]     + delta)
+      (update-in [:end-line] + line-delta)))
+
+(defn parse
+  "Parses the given text in full, returning a parsed source. The text is
+  given the name name in error messages, and identifiers are interned in the
+  given symbol table.
+
+  The parsed source holds the AST, source and number of syntax errors, under
+  :ast, :source and :errors, in the same way as parser/mini-java. The text
+  is parsed with the given front end, or with a new one."
+  ([name text symbols]
+     (parse name text symbols (parser/front-end symbols)))
+  ([name text symbols front-end]
+     (let [source (input/string-source name text)
+           [ast errors tokens] (parser/parse-source source false front-end)
+           spans  (when ast (class-spans tokens 0))]
+       {:name    name,
+        :text    text,
+        :symbols symbols,
+        :source  source,
+        :ast     ast,
+        :errors  errors,
+        ;; the main class, followed by every other class
+        :spans   (when (= (count spans) (inc (count (:classes ast))))
+                   spans)})))
+
+(defn- reparse-classes
+  "Re-parses only the class declarations touched by replacing the characters
+  from start to end with replacement, which produced new-text. Returns the
+  new parsed source, or nil if the edit could not be handled incrementally."
+  [parsed new-text start end replacement]
+  (let [{:keys [name text symbols ast spans]} parsed
+        delta    (- (count replacement) (- end start))
+        touches? (fn [{span-start :start, span-stop :stop}]
+                   (and (<= span-start end) (<= start (inc span-stop))))
+        indices  (range (count spans))
+        affected (or (seq (filter #(touches? (spans %)) indices))
+                     ;; the edit lies between classes, re-parse the class
+                     ;; which follows it, along with the gap
+                     (take 1 (filter #(>= (:start (spans %)) end) indices)))]
+    ;; the main class is never re-parsed on its own
+    (when (and (seq affected) (pos? (first affected)))
+      (let [first-i      (first affected)
+            last-i       (last affected)
+            prev         (spans (dec first-i))
+            next         (get spans (inc last-i))
+            classes      (:classes ast)
+            next-class   (get classes last-i)
+            ;; the region runs from just past the previous class, up to the
+            ;; next class or the end of the source
+            region-start (inc (:stop prev))
+            old-end      (if next (:start next) (count text))
+            new-end      (+ old-end delta)
+            old-region   (subs text     region-start old-end)
+            new-region   (subs new-text region-start new-end)]
+        (when (or (nil? next-class)
+                  (= (:column next-class) (column-at new-text new-end)))
+          (when-let [[nodes tokens]
+                     (parser/class-declarations new-region
+                                                (:end-line prev)
+                                                (:end-column prev)
+                                                symbols)]
+            (let [new-spans  (class-spans tokens region-start)
+                  line-delta (- (count-newlines new-region)
+                                (count-newlines old-region))]
+              (when (= (count new-spans) (count nodes))
+                (let [source (input/string-source name new-text)]
+                  {:name    name,
+                   :text    new-text,
+                   :symbols symbols,
+                   :source  source,
+                   :ast     (-> ast
+                                (assoc :classes
+                                  (vec (concat (subvec classes 0 (dec first-i))
+                                               nodes
+                                               (map #(shift-lines % line-delta)
+                                                    (subvec classes last-i)))))
+                                (ast/with-source source))
+                   :errors  0,
+                   :spans   (vec (concat (subvec spans 0 first-i)
+                                         new-spans
+                                         (map #(shift-span % delta line-delta)
+                                              (subvec spans (inc last-i)))))})))))))))
+
+(defn edit
+  "Replaces the characters of a parsed source from start (inclusive) to end
+  (exclusive) with the string replacement, and returns the new parsed source.
+
+  Only the class declarations touched by the edit are re-parsed, when
+  possible, although the rest of the source is still copied, and shifted
+  when lines are added or removed. Otherwise, including when the edit
+  touches the main class, or the previous text had syntax errors, the
+  entire text is parsed again."
+  [parsed start end replacement]
+  (let [{:keys [name text symbols spans]} parsed
+        new-text (str (subs text 0 start) replacement (subs text end))]
+    (or (when spans
+          (reparse-classes parsed new-text start end replacement))
+        (parse name new-text symbols))))
+
+(def ^:dynamic *sources*
+  "The store of parsed sources which compilations keep from one to the next,
+  or nil if they are not kept. A store may only be used by one compilation
+  at a time."
+  nil)
+
+(defn- empty-store
+  []
+  {:symbols (symbols/symbol-table),
+   :parsed  {}})
+
+(defn sources
+  "Returns a new, empty store of parsed sources. The store is an atom holding
+  the symbol table which their identifiers are interned in, under :symbols,
+  and each parsed source by the canonical path of its file, under :parsed."
+  []
+  (atom (empty-store)))
+
+(defn- canonical-path
+  [source-file]
+  (.getCanonicalPath (input/file source-file)))
+
+(defn retain!
+  "Drops the parsed sources of every file other than the given source files
+  from a store, once a compilation has parsed them.
+
+  Identifiers are never removed from a symbol table, so the names which
+  edits remove from the sources stay in it. The limit of a store is set to
+  twice the size of its symbol table after the first compilation which
+  fills it, and once the table outgrows it, the store is emptied instead,
+  so that the next compilation parses every file in full, with a new one."
+  [store source-files]
+  (let [paths (set (map canonical-path (remove input/stdin? source-files)))]
+    (swap! store
+           (fn [{:keys [symbols parsed limit] :as store}]
+             (let [size (symbols/size symbols)]
+               (if (and limit (> size limit))
+                 (empty-store)
+                 (assoc store
+                   :parsed (select-keys parsed paths)
+                   :limit  (or limit (* 2 size)))))))))
+
+(defn- changed-range
+  "Returns the start and end of the characters of old-text which were
+  replaced to give new-text, along with their replacement, found by
+  trimming the longest common prefix and suffix of the two."
+  [^String old-text ^String new-text]
+  (let [n      (min (.length old-text) (.length new-text))
+        prefix (loop [i 0]
+                 (if (and (< i n)
+                          (= (.charAt old-text i) (.charAt new-text i)))
+                   (recur (inc i))
+                   i))
+        suffix (loop [i 0]
+                 (if (and (< i (- n prefix))
+                          (= (.charAt old-text (- (.length old-text) i 1))
+                             (.charAt new-text (- (.length new-text) i 1))))
+                   (recur (inc i))
+                   i))]
+    [prefix
+     (- (.length old-text) suffix)
+     (subs new-text prefix (- (.length new-text) suffix))]))
+
+(defn- update-source
+  "Brings a parsed source, which may be nil, up to date with the given text
+  of the source named name."
+  [parsed name text symbols front-end]
+  (cond
+   (or (nil? parsed) (not= name (:name parsed)))
+   (parse name text symbols front-end)
+
+   ;; an unchanged source is parsed again only to report its syntax errors
+   (= text (:text parsed))
+   (if (zero? (:errors parsed))
+     parsed
+     (parse name text symbols front-end))
+
+   :else
+   (let [[start end replacement] (changed-range (:text parsed) text)]
+     (edit parsed start end replacement))))
+
+(defn source-parser
+  "Returns a function which parses a source file in the same way as
+  parser/mini-java, which it takes the arguments of, but which keeps the
+  parsed source in the given store, and only re-parses the class
+  declarations which changed since the file was last parsed, as edit does.
+  The whole file is still read and compared with its old text. The front end
+  must intern identifiers in the store's symbol table. Standard input, and
+  unbuffered sources, are parsed by parser/mini-java."
+  [store]
+  (fn [source-file unbuffered? front-end]
+    (if (or unbuffered? (input/stdin? source-file))
+      (parser/mini-java source-file unbuffered? front-end)
+      (let [path   (canonical-path source-file)
+            text   (input/text (input/source source-file))
+            parsed (update-source (get-in @store [:parsed path])
+                                  source-file text (:symbols @store)
+                                  front-end)]
+        (swap! store assoc-in [:parsed path] parsed)
+        [(:ast parsed) (:source parsed) (:errors parsed)]))))
@@ -0,0 +1,217 @@
+(ns mini-java.inline
+  "Inlines calls to small methods into their callers.
+
+  A call is inlined when it is direct, so that it has a single target, and
+  the body of its target is a single block of straight-line code, ending in
+  a return, within the size budget. The receiver and arguments are stored in
+  fresh locals of the caller, the receiver is checked for null as the call
+  would have, and the body of the target follows, rewritten to use those
+  locals, and to access the fields of the receiver rather than this. The
+  value it returns then takes the place of the call.
+
+  The body runs before the statement containing the call, so a call is only
+  inlined if nothing evaluated before it in that statement can observe or
+  be affected by the body: only constants, locals, this, arithmetic and new
+  objects. Calls on the right of && are never inlined, since they may not
+  be evaluated at all.
+
+  The fields of MiniJava classes are protected, and every class is in the
+  same, unnamed, package, so the JVM allows the fields of the receiver to be
+  accessed from the caller's class, whatever its place in the hierarchy."
+  (:require [mini-java.ir       :as ir]
+            [mini-java.simplify :as simplify]))
+
+(def ^:private budget
+  "The largest number of statements and expressions in the body of a method
+  which may be inlined."
+  16)
+
+(defn- size
+  "Returns the number of statements and expressions in a block."
+  [block]
+  (let [statements (conj (:code block) (:exit block))]
+    (+ (count statements)
+       (->> (mapcat ir/statement-expressions statements)
+            (mapcat #(tree-seq (constantly true) ir/subexpressions %))
+            count))))
+
+(defn- settled?
+  "Returns whether or not an expression neither has an effect, nor reads
+  anything which an inlined body could change."
+  [expression]
+  (and (#{:const :local :this :new :add :sub :mul :lt :and :not :neg}
+        (:op expression))
+       (every? settled? (ir/subexpressions expression))))
+
+(defn- callee
+  "Returns the IR of the target of a call, when it may be inlined, along with
+  the block of its body under :block, or nil."
+  [call class-table]
+  (let [class  (class-table (:owner call))
+        method (get-in class [:methods (:name call)])]
+    (when (and (:direct call) (:checked class) method)
+      (let [method (simplify/simplify-cfg (ir/class-method-ir class method)
+                                          nil)
+            block  ((:blocks method) (:entry method))]
+        (when (and (= 1 (count (:blocks method)))
+                   (= :return (-> block :exit :op))
+                   (<= (size block) budget))
+          (assoc method :block block))))))
+
+(defn- rebase-expression
+  "Rewrites an expression of the body of a callee into the caller, where its
+  slots start at base, and its this is the receiver."
+  [expression base receiver]
+  (let [expression (ir/map-subexpressions #(rebase-expression % base receiver)
+                                          expression)]
+    (case (:op expression)
+      :this      receiver
+      :local     (update-in expression [:slot] + base)
+      :get-field (if (= :this (:op receiver))
+                   expression
+                   (assoc expression :object receiver))
+      expression)))
+
+(defn- rebase-statement
+  "Rewrites a statement or exit of the body of a callee into the caller,
+  likewise."
+  [statement base receiver]
+  (let [statement (ir/map-statement-expressions
+                   #(rebase-expression % base receiver)
+                   statement)]
+    (case (:op statement)
+      :store     (update-in statement [:slot] + base)
+      :put-field (if (= :this (:op receiver))
+                   statement
+                   (assoc statement :object receiver))
+      statement)))
+
+(defn- inline-call
+  "Inlines a call to the given callee. The code which takes the place of the
+  call is added to the code of the state, and the expression which takes
+  the place of its value is returned, along with the new state."
+  [call callee state]
+  (let [base     (:slots state)
+        this?    (= :this (-> call :receiver :op))
+        receiver (if this?
+                   {:op :this}
+                   {:op :local, :slot base, :type (:owner call)})
+        spills   (concat
+                  (when-not this?
+                    [{:op    :store,
+                      :slot  base,
+                      :type  (:owner call),
+                      :value (:receiver call)}])
+                  (map (fn [i arg type]
+                         {:op :store, :slot (+ base 1 i), :type type,
+                          :value arg})
+                       (range) (:args call) (:args callee))
+                  (when-not (#{:this :new} (-> call :receiver :op))
+                    [{:op :check-null, :value receiver}]))
+        block    (:block callee)
+        body     (map #(rebase-statement % base receiver) (:code block))]
+    [(rebase-expression (-> block :exit :value) base receiver)
+     (-> state
+         (update-in [:code]  into (concat spills body))
+         (update-in [:slots] + (:slots callee)))]))
+
+(declare inline-expression)
+
+(defn- inline-subexpressions
+  "Inlines the calls within the direct subexpressions of an expression, in
+  the order they are evaluated, which map-subexpressions calls f in."
+  [expression state]
+  (let [state      (atom state)
+        expression (ir/map-subexpressions
+                    (fn [subexpression]
+                      (let [[subexpression new-state]
+                            (inline-expression subexpression @state)]
+                        (reset! state new-state)
+                        subexpression))
+                    expression)]
+    [expression @state]))
+
+(defn- inline-expression
+  "Inlines the calls within an expression which may be. The state holds the
+  code to run before the statement containing the expression, the number of
+  slots of the caller, and whether anything evaluated so far blocks calls
+  from being inlined. Returns the new expression, along with the new
+  state."
+  [expression state]
+  (if (= :and (:op expression))
+    (let [[left state]  (inline-expression (:left expression) state)
+          blocked       (:blocked state)
+          [right state] (inline-expression (:right expression)
+                                           (assoc state :blocked true))]
+      [(assoc expression :left left :right right)
+       (assoc state :blocked (or blocked
+                                 (not (settled? left))
+                                 (not (settled? right))))])
+    ;; the receiver and arguments of an inlined call are evaluated along
+    ;; with its body, so only what came before them can block it
+    (let [blocked            (:blocked state)
+          [expression state] (inline-subexpressions expression state)
+          target             (when (and (= :call (:op expression))
+                                        (not blocked))
+                               ((:callee state) expression))
+          [expression state] (if target
+                               (inline-call expression target
+                                            (assoc state :blocked false))
+                               [expression state])]
+      [expression (if (settled? expression)
+                    state
+                    (assoc state :blocked true))])))
+
+(defn- inline-statement
+  "Inlines the calls within a statement or exit. Returns the code which
+  takes its place, apart from an exit, which is returned on its own, along
+  with the new state."
+  [statement state]
+  (let [state     (atom (assoc state :code [], :blocked false))
+        statement (ir/map-statement-expressions
+                   (fn [expression]
+                     (let [[expression new-state]
+                           (inline-expression expression @state)]
+                       (reset! state new-state)
+                       expression))
+                   statement)]
+    [(:code @state) statement (dissoc @state :code)]))
+
+(defn- inline-block
+  "Inlines the calls within the statements and exit of a block."
+  [block state]
+  (let [[code state] (reduce (fn [[code state] statement]
+                               (let [[before statement state]
+                                     (inline-statement statement state)]
+                                 [(-> code (into before) (conj statement))
+                                  state]))
+                             [[] state]
+                             (:code block))
+        [before exit state] (inline-statement (:exit block) state)]
+    [(assoc block :code (into code before) :exit exit) state]))
+
+(defn inline
+  "Inlines the direct calls of a method to small methods whose bodies are
+  straight-line code. The bodies inlined are not searched for calls to
+  inline in turn, so inlining always stops, even at recursive calls."
+  [method context]
+  (let [class-table (:class-table context)
+        callees     (atom {})
+        state       {:slots  (:slots method),
+                     :callee (fn [call]
+                               (let [key [(:owner call) (:name call)]]
+                                 (if (contains? @callees key)
+                                   (@callees key)
+                                   ((swap! callees assoc key
+                                           (callee call class-table))
+                                    key))))}
+        [blocks state]
+        (reduce (fn [[blocks state] label]
+                  (let [[block state] (inline-block ((:blocks method) label)
+                                                    state)]
+                    [(assoc blocks label block) state]))
+                [{} state]
+                (:layout method))]
+    (assoc method
+      :blocks blocks
+      :slots  (:slots state))))
@@ -0,0 +1,282 @@
+(ns mini-java.input
+  "Reads MiniJava sources through NIO channels.
+
+  A source is a hash-map containing the name of the source and a ByteBuffer
+  holding its contents. Files are memory-mapped, so their contents live in
+  the OS page cache rather than on the heap, and standard input (or any other
+  pipe) is drained into a direct buffer. The buffer is kept for the lifetime
+  of the compilation, so that error reporting can look up source lines after
+  the lexer has moved on, using an index of line offsets which is built once
+  per source.
+
+  Sources can be turned into ANTLR character and token streams which either
+  buffer the entire input, or only a sliding window of it. A buffered stream
+  over a source which is entirely ASCII, as most are, reads its characters
+  straight from the buffer, so the source is never copied onto the heap."
+  (:import [java.io InputStream InputStreamReader]
+           [java.nio ByteBuffer]
+           [java.nio.channels Channels FileChannel FileChannel$MapMode]
+           [java.nio.charset Charset StandardCharsets]
+           [java.nio.file OpenOption StandardOpenOption]
+           [org.antlr.v4.runtime
+            ANTLRInputStream CharStream CommonTokenFactory CommonTokenStream
+            IntStream UnbufferedCharStream UnbufferedTokenStream]
+           [org.antlr.v4.runtime.misc Interval]))
+
+(def ^:private utf-8
+  (Charset/forName "UTF-8"))
+
+(def stdin-name
+  "The name given to sources read from standard input."
+  "<stdin>")
+
+(def ^:dynamic *working-directory*
+  "The directory which relative paths are resolved against, or nil for the
+  working directory of the process. The compile server binds this to the
+  working directory of each client."
+  nil)
+
+(defn file
+  "Returns the File at the given path, resolving relative paths against
+  *working-directory*."
+  [path]
+  (let [file (clojure.java.io/file path)]
+    (if (or (nil? *working-directory*) (.isAbsolute file))
+      file
+      (clojure.java.io/file *working-directory* path))))
+
+(defn stdin?
+  "Returns whether or not the given filename refers to standard input."
+  [filename]
+  (= "-" filename))
+
+(defn source-files
+  "Expands the given paths into a seq of source filenames. Directories are
+  searched recursively for .java files, which are taken in order of their
+  paths, and \"-\" is left as is. Each file is only given once. The
+  filenames of files found in a directory begin with the directory's path,
+  as it was given."
+  [paths]
+  (->> paths
+       (mapcat (fn [path]
+                 (let [dir (file path)]
+                   (if (and (not (stdin? path)) (.isDirectory dir))
+                     (->> (file-seq dir)
+                          (filter #(and (.isFile %)
+                                        (.endsWith (.getName %) ".java")))
+                          (map #(str (clojure.java.io/file
+                                      path
+                                      (str (.relativize (.toPath dir)
+                                                        (.toPath %))))))
+                          sort)
+                     [path]))))
+       distinct))
+
+(defn- map-file
+  "Memory-maps the entire file at the given path, returning the read-only
+  MappedByteBuffer. The mapping remains valid after the channel is closed."
+  [path]
+  (with-open [channel (FileChannel/open
+                        (.toPath (file path))
+                        (into-array OpenOption [StandardOpenOption/READ]))]
+    (.map channel FileChannel$MapMode/READ_ONLY 0 (.size channel))))
+
+(defn- drain-channel
+  "Reads all of the bytes from the given channel into a direct ByteBuffer,
+  doubling its capacity whenever it fills up. The returned buffer is flipped
+  and ready to be read."
+  [channel]
+  (loop [buffer (ByteBuffer/allocateDirect 8192)]
+    (if (neg? (.read channel buffer))
+      (.flip buffer)
+      (recur (if (.hasRemaining buffer)
+               buffer
+               (-> (ByteBuffer/allocateDirect (* 2 (.capacity buffer)))
+                   (.put (.flip buffer))))))))
+
+(defn- line-index
+  "Returns an int array holding the byte offset at which each line of the
+  buffer begins. The first line always begins at offset 0."
+  [^ByteBuffer buffer]
+  (let [size     (.limit buffer)
+        newline? (fn [offset] (= 10 (.get buffer (int offset))))
+        n-lines  (loop [offset 0, n 1]
+                   (if (< offset size)
+                     (recur (inc offset) (if (newline? offset) (inc n) n))
+                     n))
+        starts   (int-array n-lines)]
+    (loop [offset 0, line 1]
+      (when (< offset size)
+        (if (newline? offset)
+          (do (aset-int starts line (inc offset))
+              (recur (inc offset) (inc line)))
+          (recur (inc offset) line))))
+    starts))
+
+(defn source
+  "Opens the source with the given filename, which is either a path to a file
+  or \"-\" for standard input."
+  [filename]
+  (let [[name buffer] (if (stdin? filename)
+                        [stdin-name (drain-channel
+                                      (Channels/newChannel System/in))]
+                        [filename   (map-file filename)])]
+    {:name       name,
+     :buffer     buffer,
+     :line-index (delay (line-index buffer))}))
+
+(defn text
+  "Returns the contents of a source as a string."
+  [source]
+  (str (.decode ^Charset utf-8 (.duplicate ^ByteBuffer (:buffer source)))))
+
+(defn string-source
+  "Returns a source with the given name whose contents are the given string,
+  such as the text of an editor buffer."
+  [name ^String text]
+  (let [buffer (ByteBuffer/wrap (.getBytes text utf-8))]
+    {:name       name,
+     :buffer     buffer,
+     :line-index (delay (line-index buffer))}))
+
+(defn- buffer-input-stream
+  "Returns an InputStream which reads from a private view of the given
+  ByteBuffer, leaving the buffer itself untouched."
+  [^ByteBuffer buffer]
+  (let [buffer (.duplicate buffer)]
+    (proxy [InputStream] []
+      (read
+        ([]
+           (if (.hasRemaining buffer)
+             (bit-and 0xff (.get buffer))
+             -1))
+        ([bytes]
+           (.read this bytes 0 (alength bytes)))
+        ([bytes offset length]
+           (if (.hasRemaining buffer)
+             (let [n (min length (.remaining buffer))]
+               (.get buffer bytes offset n)
+               n)
+             -1)))
+      (available []
+        (.remaining buffer)))))
+
+;; A CharStream over a buffer of ASCII bytes, each of which is the character
+;; it encodes, which behaves exactly as an ANTLRInputStream holding the
+;; decoded characters would.
+(deftype AsciiCharStream [^ByteBuffer buffer ^String name
+                          ^:unsynchronized-mutable ^int p]
+  CharStream
+  (consume [_]
+    (if (< p (.limit buffer))
+      (set! p (unchecked-inc-int p))
+      (throw (new IllegalStateException "cannot consume EOF"))))
+  (LA [_ i]
+    (if (zero? i)
+      0
+      (let [offset (if (pos? i) (+ p (dec i)) (+ p i))]
+        (if (and (<= 0 offset) (< offset (.limit buffer)))
+          (int (.get buffer (int offset)))
+          IntStream/EOF))))
+  (mark [_]
+    -1)
+  (release [_ marker])
+  (index [_]
+    p)
+  (seek [_ index]
+    (set! p (int (min index (.limit buffer)))))
+  (size [_]
+    (.limit buffer))
+  (getSourceName [_]
+    name)
+  (getText [_ interval]
+    (let [start (.a interval)
+          stop  (min (.b interval) (dec (.limit buffer)))]
+      (if (>= start (.limit buffer))
+        ""
+        (let [bytes (byte-array (max 0 (inc (- stop start))))]
+          (.get (doto (.duplicate buffer) (.position start)) bytes)
+          (new String bytes StandardCharsets/US_ASCII))))))
+
+(defn- ascii?
+  "Returns whether or not every byte of the buffer is an ASCII character.
+  The bytes are tested eight at a time."
+  [^ByteBuffer buffer]
+  (let [size (.limit buffer)]
+    (loop [offset 0]
+      (cond
+       (<= (+ offset 8) size)
+       (and (zero? (bit-and (.getLong buffer (int offset))
+                            -0x7f7f7f7f7f7f7f80))
+            (recur (+ offset 8)))
+
+       (< offset size)
+       (and (not (neg? (.get buffer (int offset))))
+            (recur (inc offset)))
+
+       :else
+       true))))
+
+(defn char-stream
+  "Returns an ANTLR CharStream over the given source.
+
+  A buffered stream reads the characters of an ASCII source straight from
+  its buffer, and decodes any other source onto the heap up front, while an
+  unbuffered stream decodes characters on demand, holding only a small
+  window of them in memory."
+  [source unbuffered?]
+  (let [{:keys [name ^ByteBuffer buffer]} source]
+    (cond
+     unbuffered?
+     (doto (new UnbufferedCharStream
+                (new InputStreamReader (buffer-input-stream buffer) utf-8))
+       (-> .name (set! name)))
+
+     (ascii? buffer)
+     (new AsciiCharStream (.slice buffer) name 0)
+
+     :else
+     (let [chars (.decode utf-8 (.duplicate buffer))]
+       (doto (new ANTLRInputStream (.array chars) (.remaining chars))
+         (-> .name (set! name)))))))
+
+(defn token-stream
+  "Returns an ANTLR TokenStream which pulls tokens from the given lexer.
+
+  A buffered stream holds every token of the source so that the parser may
+  rewind it, while an unbuffered stream holds only a sliding window of tokens,
+  which grows only as far as the parser needs to look ahead. Since the window
+  discards the characters the tokens came from, the lexer is told to copy the
+  text into each token. The lexer may be reused from a previous source, so its
+  token factory is always set."
+  [lexer unbuffered?]
+  (if unbuffered?
+    (do (.setTokenFactory lexer (new CommonTokenFactory true))
+        (new UnbufferedTokenStream lexer))
+    (do (.setTokenFactory lexer CommonTokenFactory/DEFAULT)
+        (new CommonTokenStream lexer))))
+
+(defn source-line
+  "Returns the text of the given line (starting from 1) in the source, without
+  its line terminator, or nil if the line is past the end of the source.
+
+  The offsets of all lines are computed the first time a line is requested,
+  after which each lookup takes constant time."
+  [source line]
+  (let [^ByteBuffer buffer (:buffer source)
+        ^ints starts       @(:line-index source)
+        size               (.limit buffer)]
+    (when (and (<= 1 line (alength starts))
+               (< (aget starts (dec line)) size))
+      (let [start (aget starts (dec line))
+            ;; exclude the line's \n, and the \r of a \r\n terminator
+            end   (if (< line (alength starts))
+                    (dec (aget starts line))
+                    size)
+            end   (if (and (> end start)
+                           (= 13 (.get buffer (int (dec end)))))
+                    (dec end)
+                    end)
+            bytes (byte-array (- end start))]
+        (.get (doto (.duplicate buffer) (.position (int start))) bytes)
+        (new String bytes utf-8)))))
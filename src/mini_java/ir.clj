@@ -0,0 +1,509 @@
+(ns mini-java.ir
+  "Lowers the methods of a type checked class table into an intermediate
+  representation, which the optimization passes of mini-java.optimize
+  rewrite, and mini-java.backend turns into bytecode.
+
+  A method is a control-flow graph of basic blocks. Each block holds a
+  vector of statements under :code, which run in order, and ends with a
+  single :exit, which transfers control to another block, or out of the
+  method. The blocks are held in a map from their labels, which are
+  integers, and are laid out in the order of :layout, which the backend
+  follows, so that a block can fall through to the block laid out after
+  it. Control enters the method at the block labelled :entry.
+
+  The statements, exits and expressions are maps, distinguished by :op.
+  Statements are
+
+    {:op :store, :slot s, :type t, :value e}     store e in a local
+    {:op :rebind, :slots [s ...], :values [e ...]}
+                                                 store each e in the
+                                                 argument in slot s, all
+                                                 evaluated first
+    {:op :put-field, :owner c, :name n, :type t, :value e}
+                                                 store e in a field of
+                                                 this, or of :object e if
+                                                 given
+    {:op :array-store, :array e, :index e, :value e}
+    {:op :print, :value e}
+    {:op :check-null, :value e}                  throw if e is null
+
+  exits are
+
+    {:op :goto, :target l}
+    {:op :branch, :test e, :then l, :else l}    to then if e is true
+    {:op :return, :value e}                     e is nil in main
+
+  and expressions are trees of
+
+    {:op :const, :type t, :value v}
+    {:op :local, :slot s, :type t}
+    {:op :this}
+    {:op :get-field, :owner c, :name n, :type t}
+                                                 a field of this, or of
+                                                 :object e if given
+    {:op :add, :left e, :right e}, likewise :sub, :mul, :lt and :and,
+                                                 which only evaluates its
+                                                 right if its left is true
+    {:op :not, :operand e}, likewise :neg
+    {:op :array-load, :array e, :index e}
+    {:op :array-length, :array e}
+    {:op :call, :owner c, :name n, :descriptor d, :type t,
+     :receiver e, :args [e ...]}                 :direct is true once the
+                                                 call is known to have a
+                                                 single target
+    {:op :new, :type c}
+    {:op :new-array, :size e}
+
+  Arguments and locals are both locals, by the slot they are stored in:
+  slot 0 holds this, followed by the arguments and then the locals of the
+  method, as resolved during static semantics. Expressions only read
+  locals and fields, so an expression which neither calls a method nor
+  may throw an exception, as decided by pure?, may be freely duplicated or
+  dropped."
+  (:require [mini-java.ast :as ast])
+  (:import [mini_java.ast
+            MainClassDeclaration ClassDeclaration MethodDeclaration
+            NestedStatement IfElseStatement WhileStatement PrintStatement
+            AssignStatement ArrayAssignStatement ReturnStatement
+            RecurStatement AndExpression LtExpression AddExpression
+            SubExpression MulExpression ArrayAccessExpression
+            ArrayLengthExpression MethodCallExpression IntLitExpression
+            BooleanLitExpression IdentifierExpression ThisExpression
+            ArrayInstantiationExpression ObjectInstantiationExpression
+            NotExpression NegExpression]))
+
+(def entry
+  "The label of the block at which every method is entered."
+  0)
+
+(defprotocol Lower
+  (lower [node builder]
+    "Lowers a node of the type checked class table. Expressions return their
+    IR expression, and statements are added to the given builder, returning
+    the new builder."))
+
+;; builders
+
+(defn- builder
+  "Creates a builder, with the entry block open."
+  []
+  {:blocks  {},
+   :layout  [],
+   :labels  (inc entry),
+   :current entry,
+   :code    []})
+
+(defn- new-label
+  "Returns the builder, along with a new label."
+  [builder]
+  [(update-in builder [:labels] inc) (:labels builder)])
+
+(defn- emit
+  "Adds a statement to the open block."
+  [builder statement]
+  (update-in builder [:code] conj statement))
+
+(defn- finish
+  "Closes the open block with the given exit."
+  [builder exit]
+  (let [label (:current builder)]
+    (-> builder
+        (assoc-in [:blocks label] {:label label,
+                                   :code  (:code builder),
+                                   :exit  exit})
+        (update-in [:layout] conj label)
+        (assoc :current nil, :code []))))
+
+(defn- open
+  "Opens the block with the given label, which follows the last block
+  closed."
+  [builder label]
+  (assoc builder :current label, :code []))
+
+(defn- lower-statements
+  [statements builder]
+  (reduce #(lower %2 %1) builder statements))
+
+;; variables
+
+(defn- load-var
+  "Lowers a read of the variable which a binding refers to."
+  [binding]
+  (case (:kind binding)
+    :arg   {:op :local, :slot (inc (:index binding)), :type (:type binding)}
+    :local {:op :local, :slot (:slot binding), :type (:type binding)}
+    :field {:op    :get-field,
+            :owner (:owner binding),
+            :name  (:name binding),
+            :type  (:type binding)}))
+
+(defn- store-var
+  "Lowers a store of value into the variable which a binding refers to."
+  [binding value]
+  (case (:kind binding)
+    :arg   {:op    :store,
+            :slot  (inc (:index binding)),
+            :type  (:type binding),
+            :value value}
+    :local {:op    :store,
+            :slot  (:slot binding),
+            :type  (:type binding),
+            :value value}
+    :field {:op    :put-field,
+            :owner (:owner binding),
+            :name  (:name binding),
+            :type  (:type binding),
+            :value value}))
+
+;; statements
+
+(defn- rotate
+  "Moves the labels from index start up to end to the end of a layout."
+  [layout start end]
+  (let [[before tail] (split-at start layout)
+        [moved after] (split-at (- end start) tail)]
+    (vec (concat before after moved))))
+
+(defn- branch
+  "Closes the open block with a branch to then if the predicate is true,
+  and to else otherwise. A logical and branches on its left operand to a
+  block of its own, which branches on its right, so that the right is only
+  evaluated when the left is true."
+  [builder pred then else]
+  (if (instance? AndExpression pred)
+    (let [[builder right] (new-label builder)]
+      (-> builder
+          (branch (:left pred) right else)
+          (open right)
+          (branch (:right pred) then else)))
+    (finish builder {:op   :branch,
+                     :test (lower pred nil),
+                     :then then,
+                     :else else})))
+
+(extend-protocol Lower
+  NestedStatement
+  (lower [statement builder]
+    (lower-statements (:statements statement) builder))
+
+  IfElseStatement
+  (lower [statement builder]
+    (let [[builder then] (new-label builder)
+          [builder else] (new-label builder)
+          [builder join] (new-label builder)]
+      (as-> builder b
+            (branch b (:pred statement) then else)
+            (open   b then)
+            (lower  (:then statement) b)
+            (finish b {:op :goto, :target join})
+            (open   b else)
+            (lower  (:else statement) b)
+            (finish b {:op :goto, :target join})
+            (open   b join))))
+
+  WhileStatement
+  (lower [statement builder]
+    "The predicate is tested in blocks of their own, which the body jumps back
+    to. The loop is rotated: the test is laid out after the body, so that the
+    body falls through to it, and it branches back to the body, or falls
+    through out of the loop."
+    (let [[builder test] (new-label builder)
+          [builder body] (new-label builder)
+          [builder done] (new-label builder)
+          builder        (-> builder
+                             (finish {:op :goto, :target test})
+                             (open test))
+          test-start     (count (:layout builder))
+          builder        (-> builder
+                             (branch (:pred statement) body done)
+                             (open body))
+          test-end       (count (:layout builder))]
+      (-> (lower (:body statement) builder)
+          (finish {:op :goto, :target test})
+          (update-in [:layout] rotate test-start test-end)
+          (open done))))
+
+  PrintStatement
+  (lower [statement builder]
+    (emit builder {:op    :print,
+                   :value (lower (:arg statement) nil)}))
+
+  AssignStatement
+  (lower [statement builder]
+    (emit builder (store-var (:binding statement)
+                             (lower (:source statement) nil))))
+
+  ArrayAssignStatement
+  (lower [statement builder]
+    (emit builder {:op    :array-store,
+                   :array (load-var (:binding statement)),
+                   :index (lower (:index statement) nil),
+                   :value (lower (:source statement) nil)}))
+
+  ReturnStatement
+  (lower [statement builder]
+    (finish builder {:op    :return,
+                     :value (lower (:return-value statement) nil)}))
+
+  RecurStatement
+  (lower [statement builder]
+    "Either the arguments are rebound and the method starts over from its
+    entry, or the base case is returned."
+    (let [[builder recur] (new-label builder)
+          [builder base]  (new-label builder)
+          args            (:args statement)]
+      (as-> builder b
+            (branch b (:pred statement) recur base)
+            (open   b recur)
+            (emit   b {:op     :rebind,
+                       :slots  (vec (range 1 (inc (count args)))),
+                       :values (mapv #(lower % nil) args)})
+            (finish b {:op :goto, :target entry})
+            (open   b base)
+            (finish b {:op    :return,
+                       :value (lower (:base statement) nil)})))))
+
+;; expressions
+
+(defn- binary
+  [op expression]
+  {:op    op,
+   :left  (lower (:left  expression) nil),
+   :right (lower (:right expression) nil)})
+
+(extend-protocol Lower
+  AndExpression
+  (lower [expression _] (binary :and expression))
+
+  LtExpression
+  (lower [expression _] (binary :lt expression))
+
+  AddExpression
+  (lower [expression _] (binary :add expression))
+
+  SubExpression
+  (lower [expression _] (binary :sub expression))
+
+  MulExpression
+  (lower [expression _] (binary :mul expression))
+
+  NotExpression
+  (lower [expression _]
+    {:op :not, :operand (lower (:operand expression) nil)})
+
+  NegExpression
+  (lower [expression _]
+    {:op :neg, :operand (lower (:operand expression) nil)})
+
+  ArrayAccessExpression
+  (lower [expression _]
+    {:op    :array-load,
+     :array (lower (:array expression) nil),
+     :index (lower (:index expression) nil)})
+
+  ArrayLengthExpression
+  (lower [expression _]
+    {:op :array-length, :array (lower (:array expression) nil)})
+
+  MethodCallExpression
+  (lower [expression _]
+    {:op         :call,
+     :owner      (-> expression :caller :static-type),
+     :name       (:method expression),
+     :descriptor (:descriptor expression),
+     :type       (:static-type expression),
+     :receiver   (lower (:caller expression) nil),
+     :args       (mapv #(lower % nil) (:args expression))})
+
+  IntLitExpression
+  (lower [expression _]
+    {:op :const, :type :int, :value (int (:value expression))})
+
+  BooleanLitExpression
+  (lower [expression _]
+    {:op :const, :type :boolean, :value (boolean (:value expression))})
+
+  IdentifierExpression
+  (lower [expression _]
+    (load-var (:binding expression)))
+
+  ThisExpression
+  (lower [expression _]
+    {:op :this})
+
+  ArrayInstantiationExpression
+  (lower [expression _]
+    {:op :new-array, :size (lower (:size expression) nil)})
+
+  ObjectInstantiationExpression
+  (lower [expression _]
+    {:op :new, :type (:type expression)}))
+
+;; methods
+
+(defn- method-ir
+  "Finishes the IR of a method from the builder its body was lowered into."
+  [builder method]
+  (assoc method
+    :entry  entry
+    :blocks (:blocks builder)
+    :layout (:layout builder)))
+
+(defn main-ir
+  "Lowers the main method of a main class. Its body is a single statement,
+  after which it returns."
+  [class]
+  (-> (lower (-> class :methods :main :body) (builder))
+      (finish {:op :return, :value nil})
+      (method-ir {:class  (:name class),
+                  :name   "main",
+                  :static true,
+                  :type   :void,
+                  :args   [],
+                  :slots  1})))
+
+(defn class-method-ir
+  "Lowers a method of a class. Its final statement returns or recurs."
+  [class method]
+  (let [args   (:args method)
+        locals (filter #(= :var-declaration (ast/context %))
+                       (vals (:vars method)))]
+    (-> (lower-statements (:body method) (builder))
+        (method-ir {:class      (:name class),
+                    :name       (:name method),
+                    :descriptor (:descriptor method),
+                    :type       (:type method),
+                    :args       (mapv :type args),
+                    :slots      (+ 1 (count args) (count locals))}))))
+
+;; graphs
+
+(defn successors
+  "Returns the labels of the blocks which control may flow to from a block."
+  [block]
+  (let [exit (:exit block)]
+    (case (:op exit)
+      :goto   [(:target exit)]
+      :branch [(:then exit) (:else exit)]
+      :return [])))
+
+(defn predecessors
+  "Returns a map from the label of each block of a method to the labels of
+  the blocks which control may flow to it from."
+  [method]
+  (reduce (fn [preds label]
+            (reduce #(update-in %1 [%2] (fnil conj []) label)
+                    preds
+                    (successors ((:blocks method) label))))
+          (zipmap (:layout method) (repeat []))
+          (:layout method)))
+
+(defn statement-expressions
+  "Returns the expressions which a statement or exit evaluates, in order."
+  [statement]
+  (case (:op statement)
+    (:store :print :check-null :return) (when (:value statement)
+                                          [(:value statement)])
+    :put-field                         (if (:object statement)
+                                         [(:object statement)
+                                          (:value statement)]
+                                         [(:value statement)])
+    :rebind                            (:values statement)
+    :array-store                       [(:array statement)
+                                        (:index statement)
+                                        (:value statement)]
+    :branch                            [(:test statement)]
+    :goto                              []))
+
+(defn subexpressions
+  "Returns the direct subexpressions of an expression, in the order in which
+  they are evaluated."
+  [expression]
+  (case (:op expression)
+    (:add :sub :mul :lt :and) [(:left expression) (:right expression)]
+    (:not :neg)               [(:operand expression)]
+    :array-load               [(:array expression) (:index expression)]
+    :array-length             [(:array expression)]
+    :new-array                [(:size expression)]
+    :call                     (cons (:receiver expression) (:args expression))
+    :get-field                (if (:object expression)
+                                [(:object expression)]
+                                [])
+    (:const :local :this :new) []))
+
+(defn pure?
+  "Returns whether or not evaluating an expression can have no effect other
+  than producing its value: it calls no method, and cannot throw, as
+  indexing or taking the length of an array, creating one with a negative
+  size, or reading a field of an object which may be null, may. Creating an
+  object is not pure either: it runs a constructor, may throw when the
+  class cannot be loaded or memory runs out, and evaluating it twice
+  creates two objects."
+  [expression]
+  (and (#{:const :local :this :get-field :add :sub :mul :lt :and :not :neg}
+        (:op expression))
+       (not (:object expression))
+       (every? pure? (subexpressions expression))))
+
+(defn map-subexpressions
+  "Replaces each direct subexpression of an expression with the result of
+  calling f on it."
+  [f expression]
+  (case (:op expression)
+    (:add :sub :mul :lt :and) (assoc expression
+                                :left  (f (:left  expression))
+                                :right (f (:right expression)))
+    (:not :neg)               (update-in expression [:operand] f)
+    :array-load               (assoc expression
+                                :array (f (:array expression))
+                                :index (f (:index expression)))
+    :array-length             (update-in expression [:array] f)
+    :new-array                (update-in expression [:size] f)
+    :call                     (assoc expression
+                                :receiver (f (:receiver expression))
+                                :args     (mapv f (:args expression)))
+    :get-field                (if (:object expression)
+                                (update-in expression [:object] f)
+                                expression)
+    (:const :local :this :new) expression))
+
+(defn map-statement-expressions
+  "Replaces each expression which a statement or exit evaluates with the
+  result of calling f on it."
+  [f statement]
+  (case (:op statement)
+    (:store :print :check-null :return) (if (:value statement)
+                                          (update-in statement [:value] f)
+                                          statement)
+    :put-field                         (if (:object statement)
+                                         (assoc statement
+                                           :object (f (:object statement))
+                                           :value  (f (:value statement)))
+                                         (update-in statement [:value] f))
+    :rebind                            (update-in statement [:values]
+                                                  #(mapv f %))
+    :array-store                       (assoc statement
+                                         :array (f (:array statement))
+                                         :index (f (:index statement))
+                                         :value (f (:value statement)))
+    :branch                            (update-in statement [:test] f)
+    :goto                              statement))
+
+(defn map-expressions
+  "Rewrites every expression of a method from the bottom up, replacing each
+  with the result of calling f on it once its subexpressions have been
+  rewritten."
+  [f method]
+  (let [rewrite (fn rewrite [expression]
+                  (f (map-subexpressions rewrite expression)))
+        block   (fn [block]
+                  (-> block
+                      (update-in [:code] #(mapv (partial
+                                                 map-statement-expressions
+                                                 rewrite)
+                                                %))
+                      (update-in [:exit] #(map-statement-expressions
+                                           rewrite %))))]
+    (assoc method
+      :blocks (into {} (for [[label b] (:blocks method)]
+                         [label (block b)])))))
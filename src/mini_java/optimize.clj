@@ -0,0 +1,95 @@
+(ns mini-java.optimize
+  "Manages the optimization passes run over the IR of each method, and the
+  time they take.
+
+  Each optimization level runs a fixed sequence of passes. Level 0 runs
+  none, and does not even build the IR: code is generated straight from the
+  class table, for the fastest compilations. A pass is a function of the IR
+  of a method and the optimization context, which returns the new IR. The
+  context holds the class table, the level, and the timings, to which the
+  time spent in each pass is added.
+
+  Level 2 also analyzes the program as a whole, taking every class of the
+  class table to be every class there is, and so every class depends on the
+  whole hierarchy."
+  (:require [mini-java.dce          :as dce]
+            [mini-java.devirtualize :as devirtualize]
+            [mini-java.fold         :as fold]
+            [mini-java.hierarchy    :as hierarchy]
+            [mini-java.inline       :as inline]
+            [mini-java.simplify     :as simplify]))
+
+(def levels
+  "The optimization levels which may be selected."
+  #{0 1 2})
+
+(def passes
+  "The passes run at each optimization level, in order, as pairs of their
+  name and their function."
+  {0 []
+   1 [["fold"         fold/fold-constants]
+      ["dce"          dce/eliminate-dead-code]
+      ["simplify-cfg" simplify/simplify-cfg]]
+   2 [["devirtualize" devirtualize/devirtualize]
+      ["inline"       inline/inline]
+      ["fold"         fold/fold-constants]
+      ["dce"          dce/eliminate-dead-code]
+      ["simplify-cfg" simplify/simplify-cfg]]})
+
+(defn whole-program?
+  "Returns whether or not the given level analyzes the whole program."
+  [level]
+  (<= 2 level))
+
+(defn timed
+  "Calls f, and adds the time it took to the timings of the context, under
+  the given pass name. Returns the result of f."
+  [context name f]
+  (let [start  (System/nanoTime)
+        result (f)]
+    (swap! (:timings context) conj [name (- (System/nanoTime) start)])
+    result))
+
+(defn context
+  "Creates an optimization context for compiling the given class table at
+  the given level. At a whole program level, it also holds the analysis of
+  the class hierarchy, under :hierarchy."
+  [class-table level]
+  (let [context {:class-table class-table,
+                 :level       level,
+                 :timings     (atom [])}]
+    (if (whole-program? level)
+      (assoc context
+        :hierarchy (timed context "hierarchy"
+                          #(hierarchy/analyze class-table)))
+      context)))
+
+(defn optimize
+  "Runs the passes of the context's optimization level over the IR of a
+  method, and returns the optimized IR."
+  [method context]
+  (reduce (fn [method [name pass]]
+            (timed context name #(pass method context)))
+          method
+          (passes (:level context))))
+
+(defn timings-report
+  "Formats the total time spent in each pass, and the number of times it was
+  run, in the order the passes were first run."
+  [context]
+  (let [timings (:timings context)
+        names   (distinct (map first @timings))
+        totals  (reduce (fn [totals [name ns]]
+                          (-> totals
+                              (update-in [name :ms]   (fnil + 0.0) (/ ns 1e6))
+                              (update-in [name :runs] (fnil inc 0))))
+                        {}
+                        @timings)
+        line    (fn [name ms runs]
+                  (format "%-16s %10.3f ms %8s" name ms runs))]
+    (->> (concat [(format "%-16s %13s %8s" "pass" "time" "runs")]
+                 (for [name names
+                       :let [{:keys [ms runs]} (totals name)]]
+                   (line name ms runs))
+                 [(line "total" (reduce + (map :ms (vals totals))) "")])
+         (clojure.string/join \newline))))
@@ -1,29 +1,239 @@
 (ns mini-java.parser
   "Uses ANTLR to parse a MiniJava source file into an AST.
-  ANTLR outputs a data structure which is not ideal, and so it is passed to
-  mini-java.ast/ast, which transforms it into a more idealized AST."
-  (:require [mini-java.ast  :as ast]
-            [clojure.pprint :refer [pprint]])
+  The AST is built by the grammar's actions as rules are matched, using the
+  NodeFactory from mini-java.ast, so ANTLR is told not to build a parse tree.
+  Each rule's context is garbage as soon as the rule returns.
+
+  Parsing is done in two stages. The first stage uses ANTLR's SLL prediction
+  mode, which is much faster than full LL prediction, along with an error
+  strategy which bails out on the first syntax error. SLL is sufficient for
+  almost every valid input, so the second stage, which re-parses the input
+  in full LL mode with the custom ErrorHandler and ErrorListener, is only run
+  when the first stage fails. Since all error reporting happens in the second
+  stage, the errors reported are identical to those of a single LL parse."
+  (:require [mini-java.ast         :as ast]
+            [mini-java.diagnostics :as diagnostics]
+            [mini-java.input       :as input]
+            [mini-java.symbols     :as symbols]
+            [clojure.pprint        :refer [pprint]])
   (:import [mini-java
             ErrorHandler ErrorListener]
            [mini_java.antlr
             MiniJavaLexer MiniJavaParser]
+           [java.util
+            Queue]
+           [java.util.concurrent
+            Callable ExecutionException Executors]
            [org.antlr.v4.runtime
-            ANTLRFileStream CommonTokenStream]))
+            ANTLRInputStream BailErrorStrategy BaseErrorListener
+            CommonTokenStream Token]
+           [org.antlr.v4.runtime.atn
+            PredictionMode]
+           [org.antlr.v4.runtime.misc
+            ParseCancellationException]))
+
+(defn- sll-parse
+  "Attempts to parse the goal using SLL prediction, with no error listeners
+  and an error strategy which bails out on the first syntax error.
+
+  Returns the goal's context on success, or nil if the input could not be
+  parsed.
+  Grammar actions which flag illegal constructs do not throw, so the number
+  of syntax errors must be checked as well."
+  [parser]
+  (doto parser
+    (.removeErrorListeners)
+    (.setErrorHandler (new BailErrorStrategy)))
+  (.setPredictionMode (.getInterpreter parser) PredictionMode/SLL)
+  (try
+    (let [goal (.goal parser)]
+      (when (zero? (.getNumberOfSyntaxErrors parser))
+        goal))
+    (catch ParseCancellationException e
+      nil)))
+
+(defn- ll-parse
+  "Rewinds the token stream and parses the goal using full LL prediction,
+  with the custom error listener and error handler. The AST built by the
+  first stage is discarded along with its context.
+
+  Returns the goal's context."
+  [parser source]
+  (doto parser
+    (.reset)
+    (.removeErrorListeners)
+    (.addErrorListener (new ErrorListener source))
+    (.setErrorHandler  (new ErrorHandler)))
+  (.setPredictionMode (.getInterpreter parser) PredictionMode/LL)
+  (.goal parser))
+
+(defn- ll-parse-unbuffered
+  "Parses the goal in a single pass using full LL prediction, with the custom
+  error listener and error handler. Unbuffered token streams cannot be
+  rewound, so there is no SLL stage.
+
+  Returns the goal's context."
+  [parser source]
+  (doto parser
+    (.removeErrorListeners)
+    (.addErrorListener (new ErrorListener source))
+    (.setErrorHandler  (new ErrorHandler)))
+  (.setPredictionMode (.getInterpreter parser) PredictionMode/LL)
+  (.goal parser))
+
+(defn- parser
+  "Creates a parser which builds its AST through a NodeFactory interning
+  identifiers in the given symbol table, without building a parse tree."
+  [tokens symbols]
+  (doto (new MiniJavaParser tokens)
+    (.setBuildParseTree false)
+    (.setNodeFactory (ast/node-factory symbols))))
+
+(defn front-end
+  "Creates a lexer and parser which may be reused to parse any number of
+  sources, one at a time, interning identifiers in the given symbol table.
+  Reusing them avoids rebuilding their internal state for every source, so
+  each thread parsing sources should have a front end of its own."
+  [symbols]
+  {:lexer  (new MiniJavaLexer nil),
+   :parser (parser nil symbols)})
+
+(defn parse-source
+  "Parses an already opened source with the given front end, and returns a
+  vector containing the AST, the number of syntax errors, and the list of
+  tokens in the source. If there are syntax errors, no AST is output. If
+  unbuffered? is true, the tokens are not kept, so none are output."
+  [source unbuffered? front-end]
+  (let [{:keys [lexer parser]} front-end
+        input  (input/char-stream source unbuffered?)
+        _      (.setInputStream lexer input)
+        tokens (input/token-stream lexer unbuffered?)
+        _      (.setTokenStream parser tokens)
+        ;; parse file, falling back on LL mode if SLL mode fails
+        goal   (if unbuffered?
+                 (ll-parse-unbuffered parser source)
+                 (or (sll-parse parser)
+                     (ll-parse  parser source)))
+        errors (.getNumberOfSyntaxErrors parser)]
+    ;; an AST with syntax errors may be missing nodes, so it is only
+    ;; output when there are none
+    [(when (zero? errors) (ast/with-source (.-node goal) source))
+     errors
+     (when-not unbuffered? (.getTokens tokens))]))
 
 (defn mini-java
-  "Parse the given source file using ANTLR, and output a minimal hash-map
-  representation of an AST."
-  [source-file]
-  (let [input  (new ANTLRFileStream   source-file)
-        lexer  (new MiniJavaLexer     input)
-        tokens (new CommonTokenStream lexer)
-        ;; create parser with custom error listener and error handler
-        parser (doto (new MiniJavaParser tokens)
+  "Parse the given source file using ANTLR, and output a minimal record
+  representation of an AST, along with the source and the number of syntax
+  errors. If there are syntax errors, no AST is output.
+
+  The source file may be \"-\" to read from standard input. If unbuffered?
+  is true, characters and tokens are streamed through sliding windows rather
+  than being held in memory all at once. Identifiers are interned in the
+  symbol table of the given front end, or in a fresh one if none is given."
+  ([source-file]
+     (mini-java source-file false))
+  ([source-file unbuffered?]
+     (mini-java source-file unbuffered? (front-end (symbols/symbol-table))))
+  ([source-file unbuffered? front-end]
+     (let [source (input/source source-file)
+           [ast errors] (parse-source source unbuffered? front-end)]
+       [ast source errors])))
+
+(defn- with-front-end
+  "Calls f with a free front end interning identifiers in the given symbol
+  table, or a new one if none is free, and returns what f returns. The front
+  end is then free again, unless f threw, which may leave it in any state."
+  [symbols f]
+  (let [^Queue free (:front-ends symbols)
+        front-end   (or (.poll free) (front-end symbols))
+        result      (f front-end)]
+    (.offer free front-end)
+    result))
+
+(defn parse-files
+  "Parses each of the given source files on a pool of the given number of
+  threads, interning identifiers in the shared symbol table. Each file is
+  parsed by calling parse with the filename, unbuffered? and a front end, as
+  mini-java is by default. The front ends are kept by the symbol table, so
+  every call with the same table, such as each request to the compile
+  server, reuses them, and no two threads use one at once.
+
+  Returns a vector with an entry for each file, in the order given, holding
+  the AST, source and number of syntax errors, as output by mini-java,
+  followed by the diagnostics reported while parsing the file. The
+  diagnostics are collected rather than reported, so that they can be
+  reported in file order, whatever order the files are parsed in. The
+  parsing threads see the dynamic bindings of the calling thread."
+  ([source-files unbuffered? symbols jobs]
+     (parse-files source-files unbuffered? symbols jobs mini-java))
+  ([source-files unbuffered? symbols jobs parse]
+     (let [pool       (Executors/newFixedThreadPool jobs)
+           parse-file (fn [source-file]
+                        (let [[[ast source errors] diagnostics]
+                              (diagnostics/collect
+                               #(with-front-end symbols
+                                  (partial parse source-file unbuffered?)))]
+                          [ast source errors diagnostics]))]
+       (try
+         (->> source-files
+              (mapv (fn [source-file]
+                      (let [^Callable task (bound-fn []
+                                             (parse-file source-file))]
+                        (.submit pool task))))
+              (mapv (fn [future]
+                      (try
+                        (.get future)
+                        (catch ExecutionException e
+                          (throw (.getCause e)))))))
+         (finally
+           (.shutdown pool))))))
+
+(defn- bail-parse
+  "Calls parse on the parser with an error strategy which bails out on the
+  first syntax error, first using SLL prediction, and then full LL prediction
+  if that fails. Returns nil if the input could not be parsed."
+  [parser parse]
+  (.removeErrorListeners parser)
+  (.setErrorHandler parser (new BailErrorStrategy))
+  (some (fn [mode]
+          (.reset parser)
+          (.setPredictionMode (.getInterpreter parser) mode)
+          (try
+            (let [result (parse parser)]
+              (when (zero? (.getNumberOfSyntaxErrors parser))
+                result))
+            (catch ParseCancellationException e
+              nil)))
+        [PredictionMode/SLL PredictionMode/LL]))
+
+(defn class-declarations
+  "Parses a fragment of a source consisting only of class declarations, other
+  than the main class, which begins at the given line and column.
+
+  Returns a vector containing the class declarations' AST nodes, and the list
+  of tokens in the fragment, or nil if the fragment contains any lexical or
+  syntax errors. Nothing is reported, it is up to the caller to parse the
+  entire source when that happens."
+  [^String text line column symbols]
+  (let [lexer-errors (atom 0)
+        lexer  (doto (new MiniJavaLexer (new ANTLRInputStream text))
                  (.removeErrorListeners)
-                 (.addErrorListener (new ErrorListener))
-                 (.setErrorHandler  (new ErrorHandler)))
-        ;; parse file
-        tree   (.goal parser)
-        errors (.getNumberOfSyntaxErrors parser)]
-    [(ast/ast tree) parser errors]))
+                 (.addErrorListener
+                  (proxy [BaseErrorListener] []
+                    (syntaxError [recognizer symbol line column msg e]
+                      (swap! lexer-errors inc))))
+                 (.setLine line)
+                 (.setCharPositionInLine column))
+        tokens (doto (new CommonTokenStream lexer) (.fill))
+        parser (parser tokens symbols)
+        nodes  (bail-parse parser
+                           (fn [parser]
+                             (loop [nodes []]
+                               (if (= Token/EOF (.LA (.getTokenStream parser)
+                                                     1))
+                                 nodes
+                                 (recur (conj nodes
+                                              (.-node
+                                               (.classDeclaration parser))))))))]
+    (when (and nodes (zero? @lexer-errors))
+      [nodes (.getTokens tokens)])))
@@ -0,0 +1,331 @@
+(ns mini-java.server
+  "A long-lived compile server, which saves each compilation the cost of
+  starting the JVM, loading the compiler, and warming up ANTLR and the JIT.
+  ANTLR's prediction caches are shared by every parser, so they stay warm
+  from one compilation to the next.
+
+  The server listens on a port of the loopback interface. Each connection
+  carries a single request, written as one line of EDN, and is answered with
+  a single line of EDN. Since any local user may connect to the port, every
+  request carries a :token, which the server generates when it starts and
+  writes to a file only its owner can read, and requests without it are
+  refused. The requests, apart from their tokens, are:
+
+    {:op :compile, :args [...], :cwd \"...\"}
+      Compiles with the given command line arguments, exactly as mini-javac
+      would when run in the directory cwd. Answered with the :out and :err
+      text of the compilation, and its :exit status.
+
+    {:op :stats}
+      Answered with the server's :stats, along with a summary of them
+      under :out.
+
+    {:op :stop}
+      Stops the server once the request has been answered.
+
+  Each request is handled on its own thread, with its own diagnostics
+  reporter and output, so concurrent requests do not interfere with each
+  other. The parsed sources of the files compiled are kept from one request
+  to the next, along with the symbol table their identifiers are interned
+  in, so that a file which was edited is only re-parsed where it changed.
+  They are kept apart for each working directory, and compilations in the
+  same directory, which share them, run one at a time. Only the sources of
+  the most recently used directories are kept."
+  (:require [mini-java.core        :as core]
+            [mini-java.incremental :as incremental]
+            [mini-java.input       :as input]
+            [clojure.edn     :as edn]
+            [clojure.java.io :as io])
+  (:import [java.io BufferedReader IOException StringWriter]
+           [java.net InetAddress ServerSocket Socket SocketException]
+           [java.nio.file Files OpenOption]
+           [java.nio.file.attribute FileAttribute PosixFilePermissions]
+           [java.security MessageDigest SecureRandom]))
+
+(def default-port
+  "The port the server listens on, and the client connects to, by default."
+  7463)
+
+(defn token-file
+  "Returns the file holding the token of the server on the given port. It
+  is kept in the directory given by the mini-javac.token-dir system
+  property, or in the user's home directory."
+  [port]
+  (io/file (System/getProperty "mini-javac.token-dir"
+                               (System/getProperty "user.home"))
+           (str ".mini-javac-" port ".token")))
+
+(defn- create-private-file
+  "Creates the file at the given path, readable and writable by its owner
+  only. Filesystems without POSIX permissions cannot create a file with
+  them, so the file is created first, and then restricted as far as
+  java.io.File can, which must succeed."
+  [path]
+  (try
+    (Files/createFile path (into-array FileAttribute
+                                       [(PosixFilePermissions/asFileAttribute
+                                         (PosixFilePermissions/fromString
+                                          "rw-------"))]))
+    (catch UnsupportedOperationException e
+      (let [file (.toFile (Files/createFile path (make-array FileAttribute 0)))]
+        (when-not (and (.setReadable   file false false)
+                       (.setWritable   file false false)
+                       (.setExecutable file false false)
+                       (.setReadable   file true  true)
+                       (.setWritable   file true  true))
+          (Files/deleteIfExists path)
+          (throw (new IOException
+                      (str "cannot restrict the token file " path
+                           " to its owner; set mini-javac.token-dir to a"
+                           " directory on a filesystem which can"))))))))
+
+(defn- new-token
+  "Generates a random token, and writes it to the token file of the given
+  port, which is created readable and writable by its owner only. Returns
+  the token."
+  [port]
+  (let [bytes (byte-array 32)
+        _     (.nextBytes (new SecureRandom) bytes)
+        token (apply str (map #(format "%02x" %) bytes))
+        path  (.toPath (token-file port))]
+    ;; recreated, rather than overwritten, so that a file left with looser
+    ;; permissions is never reused
+    (Files/deleteIfExists path)
+    (create-private-file path)
+    (Files/write path (.getBytes token "UTF-8") (make-array OpenOption 0))
+    token))
+
+(defn- authorized?
+  "Returns whether or not a request carries the server's token, comparing
+  them in constant time."
+  [request ^String token]
+  (let [given (:token request)]
+    (and (string? given)
+         (MessageDigest/isEqual (.getBytes ^String given "UTF-8")
+                                (.getBytes token "UTF-8")))))
+
+(defn- new-stats
+  "Returns the initial statistics of a server."
+  []
+  (atom {:requests   0,
+         :failures   0,
+         :in-flight  0,
+         :total-ms   0.0,
+         :max-ms     0.0}))
+
+(defn- record-request!
+  "Records a finished compile request which took the given time, and
+  whether or not it succeeded."
+  [stats ms success?]
+  (swap! stats
+         (fn [stats]
+           (-> stats
+               (update-in [:requests]  inc)
+               (update-in [:failures]  (if success? identity inc))
+               (update-in [:in-flight] dec)
+               (update-in [:total-ms]  + ms)
+               (update-in [:max-ms]    max ms)))))
+
+(defn- stats-summary
+  "Formats the server's statistics for display."
+  [{:keys [requests failures in-flight total-ms max-ms]}]
+  (format (str "requests:     %d\n"
+               "failures:     %d\n"
+               "in flight:    %d\n"
+               "mean latency: %.1f ms\n"
+               "max latency:  %.1f ms")
+          requests failures in-flight
+          (if (pos? requests) (/ total-ms requests) 0.0)
+          max-ms))
+
+(def ^:private kept-directories
+  "The number of working directories whose parsed sources are kept."
+  8)
+
+(defn- sources-for!
+  "Returns the store of parsed sources kept for the given working directory,
+  creating it if there is none yet. The directory becomes the most recently
+  used, and the store of the least recently used one is dropped when more
+  than kept-directories would be kept."
+  [kept cwd]
+  (let [used (System/nanoTime)]
+    (-> (swap! kept
+               (fn [kept]
+                 (let [kept (assoc kept cwd
+                                   {:store (or (get-in kept [cwd :store])
+                                               (incremental/sources)),
+                                    :used  used})]
+                   (if (> (count kept) kept-directories)
+                     (dissoc kept (key (apply min-key (comp :used val) kept)))
+                     kept))))
+        (get-in [cwd :store]))))
+
+(defn- compile-request
+  "Runs a compilation for a client, capturing its output, and returns the
+  response. The compilation keeps its parsed sources in the store of its
+  working directory, which it holds the lock of while it runs."
+  [{:keys [args cwd]} stats kept]
+  (swap! stats update-in [:in-flight] inc)
+  (let [out   (new StringWriter)
+        err   (new StringWriter)
+        start (System/nanoTime)
+        store (sources-for! kept cwd)
+        exit  (try
+                (binding [*out*                    out
+                          *err*                    err
+                          input/*working-directory* cwd
+                          incremental/*sources*    store]
+                  (if (some input/stdin? args)
+                    (do (println "Standard input cannot be compiled by"
+                                 "the compile server.")
+                        1)
+                    (locking store
+                      (core/run args))))
+                ;; errors too, such as a stack overflow on a deeply nested
+                ;; source, must still be answered and recorded
+                (catch Throwable e
+                  (.write err (str e "\n"))
+                  1))
+        ms    (/ (- (System/nanoTime) start) 1e6)]
+    (record-request! stats ms (zero? exit))
+    {:out  (str out),
+     :err  (str err),
+     :exit exit}))
+
+(def ^:private max-request-length
+  "The number of characters in the longest request the server reads."
+  (* 1024 1024))
+
+(defn- read-line!
+  "Reads a line from the reader, without its newline. Returns nil if the
+  reader is at its end, or :too-long, having read no further, if the line
+  is longer than max-request-length, so that a client cannot make the
+  server hold an unbounded line."
+  [^BufferedReader reader]
+  (let [line (new StringBuilder)]
+    (loop []
+      (let [c (.read reader)]
+        (cond
+         (neg? c)
+         (when (pos? (.length line))
+           (str line))
+
+         (= c (int \newline))
+         (str line)
+
+         (>= (.length line) max-request-length)
+         :too-long
+
+         :else
+         (do (.append line (char c))
+             (recur)))))))
+
+(defn- read-request
+  "Reads a request from a line of EDN, as read by read-line!. Returns the
+  request, or a response describing why it is not one."
+  [line]
+  (cond
+   (nil? line)
+   [nil {:err "no request\n", :exit 1}]
+
+   (= :too-long line)
+   [nil {:err "request too long\n", :exit 1}]
+
+   :else
+   (let [request (try
+                   (edn/read-string line)
+                   (catch Exception e
+                     e))]
+     (cond
+      (instance? Exception request)
+      [nil {:err (str "malformed request: " (.getMessage ^Exception request)
+                      "\n"),
+            :exit 1}]
+
+      (not (map? request))
+      [nil {:err "malformed request: not a map\n", :exit 1}]
+
+      (and (= :compile (:op request))
+           (not (and (sequential? (:args request))
+                     (every? string? (:args request))
+                     (string? (:cwd request)))))
+      [nil {:err "malformed request: :args and :cwd must be strings\n",
+            :exit 1}]
+
+      :else
+      [request nil]))))
+
+(defn- handle
+  "Reads a request from the socket, writes back the response, and closes the
+  socket. Returns true if the server should stop."
+  [^Socket socket stats kept token]
+  (with-open [socket socket
+              reader (io/reader socket)
+              writer (io/writer socket)]
+    (let [[request error] (read-request (read-line! reader))
+          response (cond
+                    error
+                    error
+
+                    (not (authorized? request token))
+                    {:err "unauthorized request\n", :exit 1}
+
+                    :else
+                    (case (:op request)
+                      :compile (compile-request request stats kept)
+                      :stats   (let [stats @stats]
+                                 {:stats stats,
+                                  :out   (stats-summary stats),
+                                  :exit  0})
+                      :stop    {:out "stopping", :exit 0}
+                      {:err  (str "unknown request: "
+                                  (pr-str (dissoc request :token)) "\n"),
+                       :exit 1}))]
+      (binding [*out* writer]
+        (prn response))
+      (.flush writer)
+      (and (nil? error)
+           (authorized? request token)
+           (= :stop (:op request))))))
+
+(defn serve
+  "Listens for requests on the given port of the loopback interface, until
+  a stop request is received. The token is written to the port's token
+  file once the port is bound, so that a second server on the same port
+  fails before replacing the first's token, and is removed once the server
+  stops."
+  [port]
+  (let [stats (new-stats)
+        kept  (atom {})]
+    (with-open [server (new ServerSocket port 50
+                            (InetAddress/getLoopbackAddress))]
+      (let [token (new-token port)]
+        (try
+          (binding [*out* *err*]
+            (println "mini-javac server listening on port" port))
+          (loop []
+            (let [socket (try
+                           (.accept server)
+                           (catch SocketException e
+                             nil))]
+              (when socket
+                (future
+                  (when (handle socket stats kept token)
+                    (.close server)))
+                (recur))))
+          (finally
+            (io/delete-file (token-file port) true)))))))
+
+(defn -main
+  "Starts the compile server, on the port given as the only argument, or on
+  the default port."
+  [& [port]]
+  (let [exit (try
+               (serve (if port (Integer/parseInt port) default-port))
+               0
+               (catch IOException e
+                 (binding [*out* *err*]
+                   (println "mini-javac server:" (.getMessage e)))
+                 1))]
+    (shutdown-agents)
+    (System/exit exit)))
@@ -0,0 +1,116 @@
+(ns mini-java.simplify
+  "Simplifies the control-flow graph of a method in the IR, so that later
+  passes see, and the backend emits, as few blocks and jumps as possible."
+  (:require [mini-java.ir :as ir]))
+
+(defn- forwarding
+  "Returns a map from the label of each empty block which only jumps
+  elsewhere, other than the entry, to the label it jumps to."
+  [method]
+  (into {} (for [[label block] (:blocks method)
+                 :when (and (not= (:entry method) label)
+                            (empty? (:code block))
+                            (= :goto (-> block :exit :op)))]
+             [label (-> block :exit :target)])))
+
+(defn- final-target
+  "Follows a label through the forwarding map, stopping short of going
+  around an empty loop."
+  [forward label]
+  (loop [label label
+         seen  #{label}]
+    (let [target (forward label)]
+      (if (and target (not (seen target)))
+        (recur target (conj seen target))
+        label))))
+
+(defn- retarget
+  "Updates the targets of an exit with the given function."
+  [exit f]
+  (case (:op exit)
+    :goto   (update-in exit [:target] f)
+    :branch (-> exit
+                (update-in [:then] f)
+                (update-in [:else] f))
+    :return exit))
+
+(defn- thread-jumps
+  "Makes every jump to an empty block which only jumps elsewhere go
+  straight to where that block leads."
+  [method]
+  (let [forward (forwarding method)]
+    (if (empty? forward)
+      method
+      (assoc method
+        :blocks (into {} (for [[label block] (:blocks method)]
+                           [label (update-in block [:exit] retarget
+                                             #(final-target forward %))]))))))
+
+(defn remove-unreachable
+  "Removes the blocks which cannot be reached from the entry of a method."
+  [method]
+  (let [blocks    (:blocks method)
+        reachable (loop [reached #{}
+                         pending [(:entry method)]]
+                    (if-let [[label & pending] (seq pending)]
+                      (if (reached label)
+                        (recur reached pending)
+                        (recur (conj reached label)
+                               (concat (ir/successors (blocks label))
+                                       pending)))
+                      reached))]
+    (assoc method
+      :blocks (select-keys blocks reachable)
+      :layout (filterv reachable (:layout method)))))
+
+(defn- merge-blocks
+  "Merges each block into the block before it, when that block always jumps
+  to it, and nothing else does.
+
+  The blocks are merged in a single pass over the layout, in which each
+  block absorbs the whole chain of blocks it leads to, with the
+  predecessors of each block computed once, and then updated as blocks
+  merge: the successors of a block absorbed by another are reached from
+  that one instead."
+  [method]
+  (let [entry (:entry method)]
+    (loop [blocks  (:blocks method)
+           preds   (ir/predecessors method)
+           merged  #{}
+           pending (seq (:layout method))]
+      (if-let [[a & more] pending]
+        (let [block (blocks a)
+              exit  (:exit block)
+              b     (:target exit)]
+          (if (and block
+                   (= :goto (:op exit))
+                   (not= a b)
+                   (not= entry b)
+                   (= [a] (preds b)))
+            (let [absorbed (blocks b)]
+              (recur (-> blocks
+                         (assoc a (assoc block
+                                    :code (into (:code block)
+                                                (:code absorbed))
+                                    :exit (:exit absorbed)))
+                         (dissoc b))
+                     (reduce (fn [preds succ]
+                               (update-in preds [succ]
+                                          (partial mapv #(if (= b %) a %))))
+                             preds
+                             (distinct (ir/successors absorbed)))
+                     (conj merged b)
+                     pending))
+            (recur blocks preds merged more)))
+        (assoc method
+          :blocks blocks
+          :layout (filterv (complement merged) (:layout method)))))))
+
+(defn simplify-cfg
+  "Threads jumps through empty blocks, removes unreachable blocks, and
+  merges straight-line sequences of blocks."
+  [method context]
+  (-> method
+      thread-jumps
+      remove-unreachable
+      merge-blocks))
@@ -1,14 +1,46 @@
 (ns mini-java.static-semantics
   "Performs static semantic checks on ASTs, and creates a class table.
-  Static semantics includes type checking, name resolution, and minimal
-  data flow analysis."
-  (:require [mini-java.ast    :as    ast]
-            [mini-java.errors :refer [print-error
-                                      print-type-error
-                                      print-symbol-error]]
-            [mini-java.util   :as    util]))
-
-(declare info type-check parent-seq)
+  Static semantics includes type checking, name resolution, and definite
+  assignment analysis, over the control-flow graphs of mini-java.cfg."
+  (:require [mini-java.ast         :as ast]
+            [mini-java.cfg         :as cfg]
+            [mini-java.diagnostics :as diagnostics]
+            [mini-java.util        :as util])
+  (:import [mini_java.ast
+            MainClassDeclaration ClassDeclaration MethodDeclaration
+            FieldDeclaration VarDeclaration FormalParameter
+            NestedStatement IfElseStatement WhileStatement PrintStatement
+            AssignStatement ArrayAssignStatement ReturnStatement
+            RecurStatement AndExpression LtExpression AddExpression
+            SubExpression MulExpression ArrayAccessExpression
+            ArrayLengthExpression MethodCallExpression IntLitExpression
+            BooleanLitExpression IdentifierExpression ThisExpression
+            ArrayInstantiationExpression ObjectInstantiationExpression
+            NotExpression NegExpression]
+           [java.util.concurrent Callable ExecutionException ForkJoinPool]))
+
+(def ^:dynamic *source*
+  "The source of the class currently being checked, which errors within it
+  are reported against. Classes themselves carry their source, under
+  :origin."
+  nil)
+
+(defprotocol Info
+  (info [node errors]
+    "Takes a node in the AST, and extracts information from it. At the top
+    level, info returns a class table. Errors are reported to the collector
+    errors."))
+
+(defprotocol TypeCheck
+  (type-check [node scopes errors]
+    "Checks that each node in the AST has the appropriate type, reporting
+    errors to the collector errors. Returns the node with the results of the
+    checks recorded in it, so that code generation need not repeat them:
+    every expression is given its type under :static-type, which is nil if
+    it could not be determined, every method call is also given the
+    descriptor of the method it calls under :descriptor, and every
+    identifier and assignment is given the variable it refers to, resolved
+    by resolve-var, under :binding."))
 
 (def ^:private context->type
   "Maps several context keywords to a string describing their type for use
@@ -32,7 +64,7 @@
 (defn- type-str
   "Returns the string representation of type"
   [type]
-  (get type-str-map type type))
+  (str (get type-str-map type type)))
 
 (defn- arg-types-str
   "Returns the string representation of a list of argument types"
@@ -40,120 +72,154 @@
   (clojure.string/join "," (map type-str arg-types)))
 
 (defn- report*
-  "General error reporting function."
-  [error-agent msg meta & {:keys [found  required
-                                  symbol location]}]
-  (let [{:keys [line column]} meta
-        [error-count parser]  error-agent]
-    (cond
-      found  (print-type-error   parser msg line column found  required)
-      symbol (print-symbol-error parser msg line column symbol location)
-      :else  (print-error        parser msg line column))
-    [(inc error-count) parser]))
+  "General error reporting function, which reports the error to the given
+  collector, and returns the collector. The position of the error is taken
+  from the line and column of the given node, or of the metadata of a
+  non-node such as an argument list."
+  [errors msg node & {:keys [found  required
+                             symbol location]}]
+  (let [{:keys [line column]} (if (ast/context node) node (meta node))
+        source                (or (:origin node) *source*)]
+    (diagnostics/report! errors
+                         (merge {:source  source,
+                                 :message msg,
+                                 :line    line,
+                                 :column  column}
+                                (cond
+                                 found  {:found    found,
+                                         :required required}
+                                 symbol {:symbol   symbol,
+                                         :location location})))
+    errors))
 
 (defn- report-duplicate
   "Reports a duplicate class/method/variable."
-  [error-agent obj]
+  [errors obj]
   (let [msg (str "duplicate " (type-from-context obj) ": " (:name obj))]
-    (report* error-agent msg (meta obj))))
+    (report* errors msg obj)))
 
 (defn- report-shadow
   "Reports a class shadowing one of its parents' fields."
-  [error-agent child var]
+  [errors child var]
   (let [msg (str "class "             (:name child)
                  " shadows variable " (:name var))]
-    (report* error-agent msg (meta var))))
+    (report* errors msg var)))
 
 (defn- report-cyclic-inheritance
   "Reports a cyclic inheritance."
-  [error-agent class]
+  [errors class]
   (let [msg (str "cyclic inheritance involving " (:name class))]
-    (report* error-agent msg (meta class))))
+    (report* errors msg class)))
 
 (defn- report-bad-type
   "Reports a bad type."
-  [error-agent context found required]
+  [errors context found required]
   (let [msg "incompatible types"]
-    (report* error-agent msg (meta context)
+    (report* errors msg context
              :found    (type-str found)
              :required (type-str required))))
 
 (defn- report-missing-symbol
   "Reports a symbol is missing."
-  [error-agent context scopes]
-  (let [symbol   (:id context)
-        location (-> scopes :class :name)
+  [errors context scopes]
+  (let [symbol   (some-> context :id str)
+        location (str (-> scopes :class :name))
         msg      "cannot find symbol"]
-    (report* error-agent msg (meta context)
+    (report* errors msg context
              :symbol   symbol
              :location location)))
 
 (defn- report-missing-method
   "Reports a method is missing."
-  [error-agent context method-name]
+  [errors context method-name]
   (let [msg (str "cannot find method " method-name)]
-    (report* error-agent msg (meta context))))
+    (report* errors msg context)))
 
 (defn- report-missing-type
   "Reports a type is missing."
-  [error-agent context type]
+  [errors context type]
   (let [msg (str "cannot find type " type)]
-    (report* error-agent msg (meta context))))
+    (report* errors msg context)))
 
 (defn- report-use-before-init
   "Reports a variable is used before initialization."
-  [error-agent context var-name]
+  [errors context var-name]
   (let [msg (str "variable " var-name " might not have been initialized")]
-    (report* error-agent msg (meta context))))
+    (report* errors msg context)))
 
 (defn- report-number-of-args
   "Reports a method is called with the wrong number of arguments."
-  [error-agent context n-required]
+  [errors context n-required]
   (let [msg (str "wrong number of args given (" n-required " required)")]
-    (report* error-agent msg (meta context))))
+    (report* errors msg context)))
 
 (defn- report-type-args
   "Reports a method is called with the wrong types of arguments."
-  [error-agent given-types required-types context]
+  [errors given-types required-types context]
   (let [msg "method cannot be applied to given types"]
-    (report* error-agent msg (meta context)
+    (report* errors msg context
              :found    (arg-types-str given-types)
              :required (arg-types-str required-types))))
 
 (defn- report-overload
   "Reports a method is overloaded (not allowed in MiniJava)."
-  [error-agent context child-type parent-type]
+  [errors context child-type parent-type]
   (let [msg (str "method " (:name context) " overloads parent method")]
-    (report* error-agent msg (meta context))))
+    (report* errors msg context)))
 
 (defn- report-return-type
   "Reports a method is overriden with the wrong return type."
-  [error-agent context child-type parent-type]
+  [errors context child-type parent-type]
   (let [msg (str "method " (:name context)
                  " overrides parent method with wrong type")]
-    (report* error-agent msg (meta context)
+    (report* errors msg context
              :found    (type-str child-type)
              :required (type-str parent-type))))
 
 (defn- report-no-return
   "Reports a method is missing a return statement."
-  [error-agent method]
+  [errors method]
   (let [msg (str "method " (:name method) " does not return")]
-    (report* error-agent msg (meta method))))
+    (report* errors msg method)))
 
 (defn- report-non-tail-return
   "Reports a method returns outside the tail position."
-  [error-agent statement]
+  [errors statement]
   (let [statement-type (if (= :return-statement
                               (ast/context statement))
                          "return"
                          "recur")
         msg (str statement-type " only allowed from tail position of method")]
-    (report* error-agent msg (meta statement))))
+    (report* errors msg statement)))
 
 (def ^:private primitive?
   #{:int :int<> :boolean})
 
+(def ^:private primitive-descriptors
+  "Maps primitive keywords to JVM type descriptors"
+  {:int     "I",
+   :int<>   "[I",
+   :boolean "Z"})
+
+(defn type-descriptor
+  "Returns the JVM descriptor of a type. Class types are their name prefixed
+  with an L, and suffixed with a semicolon."
+  [type]
+  (or (primitive-descriptors type)
+      (str "L" type ";")))
+
+(defn- method-descriptor
+  "Returns the JVM descriptor of a method, from the types of its arguments
+  and its return type."
+  [method]
+  (str "(" (apply str (map (comp type-descriptor :type) (:args method))) ")"
+       (type-descriptor (:type method))))
+
+(defn- typed
+  "Records the type of an expression in it."
+  [expression type]
+  (assoc expression :static-type type))
+
 (defn- subtype?
   "Returns whether or not child is a subtype of parent."
   [child parent class-table]
@@ -165,567 +231,685 @@
     (primitive? child)
     false
     ;; if everything above failed, must either be a true child of parent,
-    ;; or just not a subtype
+    ;; in which case its interval lies within its parent's, or just not a
+    ;; subtype
     :else
-    (let [child-class (class-table child)]
-      (when-let [parents (parent-seq child-class class-table)]
-        (some (partial = parent)
-              (map :name parents))))))
+    (let [child-class  (class-table child)
+          parent-class (class-table parent)]
+      (and child-class
+           parent-class
+           (<= (:pre parent-class) (:pre child-class))
+           (<= (:post child-class) (:post parent-class))))))
 
 (defn- assert-type
   "Reports a type mismatch if the found type is not a subtype of the required
   type. If either type is nil, then the error occurred earlier, and would have
   been reported."
-  [found required context scopes error-agent]
+  [found required context scopes errors]
   (when (and found
              required
              (not (subtype? found required
                             (:class-table scopes))))
-    (send-off error-agent report-bad-type context found required)))
+    (report-bad-type errors context found required)))
 
 (defn- assert-type-exists
   "Reports a missing type if the given type does not exist."
-  [type class-table context error-agent]
+  [type class-table context errors]
   (when-not (or (primitive?  type)
                 (class-table type))
-    (send-off error-agent report-missing-type context type)))
+    (report-missing-type errors context type)))
 
 (defn- info-map
   "Constructs a mapping of element names to the result of applying the info
   function to the elements in the given collection. If an element is already
   contained in the map, a duplicate error is reported. An initial map can be
   optionally provided."
-  ([coll error-agent]
-     (info-map coll {} error-agent))
-  ([coll init error-agent]
+  ([coll errors]
+     (info-map coll {} errors))
+  ([coll init errors]
      (-> (fn [r elem]
-           (let [{:keys [name] :as info} (info elem error-agent)]
+           (let [{:keys [name] :as info} (info elem errors)]
              (if (get r name)
-               (do (send-off error-agent report-duplicate elem)
+               (do (report-duplicate errors elem)
                    r)
                (assoc r name info))))
          (reduce init coll))))
 
-(defmulti info
-  "Takes a node in the AST, and extracts information from it. At the top level,
-  info returns a class table."
-  (fn [x & args] (ast/context x)))
-
-(defmethod info :default [obj error-agent]
-  "If none of the contexts is matched, it is a bug. Crash."
-  (throw (ex-info "Unknown context."
-                  {:type :unknown-context
-                   :node obj})))
-
-(defmethod info :field-declaration [field error-agent]
-  "Field declarations are always initialized."
-  (assoc field :initialized? (atom true)))
-
-(defmethod info :var-declaration [var error-agent]
-  "Variable declarations are always uninitialized at first."
-  (assoc var :initialized? (atom false)))
-
-(defmethod info :formal-parameter [var error-agent]
-  "Formal parameters are argument variables, and therefore do not need to be
-  initialized."
-  (assoc var :initialized? (atom true)))
-
-(defmethod info :method-declaration [method error-agent]
-  "Extracts the information from a method declaration, consolidating its
-  variables into an info-map, and reporting duplicates."
-  (let [args (:args method)
-        ;; create hash map of argument variables
-        arg-vars (info-map args error-agent)]
-    (-> {:name (:name method),
-         :type (:type method),
-         :args args,
-         ;; combine local and argument variables into a single map
-         :vars (info-map (:vars method) arg-vars error-agent)
-         :body (:body method)}
-      (with-meta (meta method)))))
-
-(defmethod info :class-declaration [class error-agent]
-  "Extracts the information from a class declaration, applying the info-map
-  function to its methods and fields to both organize them and report
-  duplicates."
-  (-> {:name    (:name class),
-       :parent  (:parent class),
-       :vars    (info-map (:vars class) error-agent)
-       :methods (info-map (:methods class) error-agent)}
-    (with-meta (meta class))))
-
-(defmethod info :main-class-declaration [class error-agent]
-  "Rearranges the information in a main class declaration."
-  (-> {:name    (:name class)
-       :main?   true
-       :vars    ()
-       :methods {:main {:name "main"
-                        :vars ()
-                        :args ()
-                        :body (:body class)}}}
-    (with-meta (meta class))))
-
-(defn parent-seq
-  "Returns a recursive lazy seq of all parents of the given class."
-  [class class-table]
-  (lazy-seq
-   (when-let [parent-name (:parent class)]
-     (let [parent (class-table parent-name)]
-       (cons parent (parent-seq parent class-table))))))
+(extend-protocol Info
+  ;; variables carry no information beyond their declarations, whether they
+  ;; are assigned before use is found by mini-java.cfg
+  FieldDeclaration
+  (info [field errors]
+    field)
+
+  VarDeclaration
+  (info [var errors]
+    var)
+
+  FormalParameter
+  (info [var errors]
+    var))
+
+(defn- number-locals
+  "Gives each local variable in a method's map of variables the slot it is
+  stored in, under :slot. Slot 0 holds this, and the arguments follow it, so
+  the locals are numbered from there in the order they are declared."
+  [vars n-args]
+  (->> (util/in-source-order vars)
+       (filter #(= :var-declaration (ast/context %)))
+       (map-indexed (fn [i var]
+                      [(:name var) (assoc var :slot (+ 1 n-args i))]))
+       (into vars)))
+
+(extend-type MethodDeclaration
+  Info
+  (info [method errors]
+    "Extracts the information from a method declaration, consolidating its
+    variables into an info-map, and reporting duplicates."
+    (let [args (:args method)
+          ;; create hash map of argument variables
+          arg-vars (info-map args errors)]
+      ;; combine local and argument variables into a single map
+      (assoc method
+        :vars       (-> (info-map (:vars method) arg-vars errors)
+                        (number-locals (count args)))
+        :descriptor (method-descriptor method)))))
+
+(extend-type ClassDeclaration
+  Info
+  (info [class errors]
+    "Extracts the information from a class declaration, applying the info-map
+    function to its methods and fields to both organize them and report
+    duplicates."
+    (binding [*source* (:origin class)]
+      (assoc class
+        :vars    (info-map (:vars class) errors)
+        :methods (info-map (:methods class) errors)))))
+
+(extend-type MainClassDeclaration
+  Info
+  (info [class errors]
+    "Rearranges the information in a main class declaration."
+    (assoc class
+      :main?   true
+      :vars    {}
+      :methods {:main {:name "main"
+                       :vars {}
+                       :args ()
+                       :body (:body class)}})))
 
 (defn locate-var
   "Locates the variable referenced by the id.
   First searches the variables local to the method, then the fields of the
-  class, and finally recursively searches the fields of the parent class(es)."
+  class, including those it inherits."
   [id scopes]
-  (or (-> scopes :method :vars (get id))
-      (-> scopes :class  :vars (get id))
-      (loop [parents (:parents scopes)]
-        (when (seq parents)
-          (let [parent (first parents)
-                vars   (:vars parent)]
-            (if-let [var (get vars id)]
-              var
-              (recur (next parents))))))))
+  (or (-> scopes :method :vars        (get id))
+      (-> scopes :class  :field-table (get id))))
+
+(defn- resolve-var
+  "Resolves the variable referenced by the id to where it is stored, which is
+  one of:
+
+    {:kind :arg,   :index i}     the i-th argument of the method
+    {:kind :local, :slot s}      the local variable in slot s
+    {:kind :field, :owner c}     a field of this, whose class is c
+
+  along with the :name and :type of the variable. Returns nil if there is no
+  such variable."
+  [id scopes]
+  (when-let [var (locate-var id scopes)]
+    (merge {:name (:name var),
+            :type (:type var)}
+           (case (ast/context var)
+             :formal-parameter  {:kind :arg,   :index (:arg-index var)}
+             :var-declaration   {:kind :local, :slot  (:slot var)}
+             :field-declaration {:kind :field, :owner (-> scopes :class :name)}))))
 
 (defn locate-method
-  "Returns the method bound to method-name by traversing class'
-  inheritance chain until it finds an implementation of the method."
-  [class method-name scopes]
-  (if-let [method (get (:methods class) method-name)]
-    ;; return the method if found
-    method
-    (when-let [parent ((:class-table scopes) (:parent class))]
-      ;; recur on parent class if method not found
-      ;; or return nil if parent is nil
-      (recur parent method-name scopes))))
+  "Returns the method bound to method-name in class, which is either its own
+  implementation of the method, or the one it inherits."
+  [class method-name]
+  (get (:method-table class) method-name))
 
 (defn- check-arg-count
   "Check that the number of given arguments match the number required for
-  the method call."
-  [given-args required-args error-agent]
+  the method call. Returns whether or not they do."
+  [given-args required-args errors]
   (let [n-given    (count given-args)
         n-required (count required-args)]
-    (or
+    (if (= n-given n-required)
       ;; correct number of arguments given
-      (= n-given n-required)
+      true
       ;; wrong number of arguments given
-      (send-off error-agent report-number-of-args given-args n-required))))
+      (do (report-number-of-args errors given-args n-required)
+          false))))
 
 (defn- check-arg-types
-  "Check that the given arguments are of the required types."
-  [given-args required-args scopes error-agent]
-  (let [given-types (map #(type-check % scopes error-agent) given-args)
+  "Check that the given arguments, which have been type checked, are of the
+  required types."
+  [given-args required-args scopes errors]
+  (let [given-types (map :static-type given-args)
         required-types (map :type required-args)]
     (if (every? identity (map #(subtype? %1 %2 (:class-table scopes))
                            given-types required-types))
       ;; all arguments are of required type
       true
       ;; not all arguments are of required type, report it
-      (send-off error-agent
-                report-type-args given-types required-types given-args))))
-
-(defn- check-args [given-args required-args context scopes error-agent]
-  (and (check-arg-count given-args required-args error-agent)
-       (check-arg-types given-args required-args scopes error-agent)))
+      (report-type-args errors given-types required-types given-args))))
+
+(defn- check-args
+  "Checks the given arguments against the required ones, and returns them
+  type checked. The arguments are always type checked, so that the errors
+  within them are reported, but their types are only compared with the
+  required ones when the right number of them is given, since otherwise
+  there is no telling which argument was meant to be which."
+  [given-args required-args scopes errors]
+  (let [count-ok?  (check-arg-count given-args required-args errors)
+        ;; the argument list keeps its metadata, which holds its position
+        given-args (with-meta (mapv #(type-check % scopes errors)
+                                    given-args)
+                     (meta given-args))]
+    (when count-ok?
+      (check-arg-types given-args required-args scopes errors))
+    given-args))
 
 (defn- shadow-check
-  "Reports errors if class shadows any of its parent's fields."
-  [class parents error-agent]
-  (when (seq parents)
-    (let [parent-field-names
-          (->> parents
-               ;; create a seq of all vars of all parents
-               (mapcat :vars)
-               ;; take their names
-               (map first)
-               ;; remove duplicats
-               set)]
-      (doall
-       (->> parent-field-names
-            (map (:vars class))
-            (filter identity)
-            (map #(send-off error-agent report-shadow class %)))))))
+  "Reports errors if class shadows any of its parents' fields."
+  [class class-table errors]
+  (let [parent-fields (:field-table (class-table (:parent class)))]
+    (doseq [field (vals (:vars class))
+            :when (contains? parent-fields (:name field))]
+      (report-shadow errors class field))))
 
 (defn- override-check
-  "Reports errors if class overrides one of its parent's methods without
-  using the same argument and return types."
-  [child-methods parents error-agent]
-  (when-let [parent (first parents)]
-    (let [parent-methods         (:methods parent)
-          child-method-names     (set (keys child-methods))
-          parent-method-names    (set (keys parent-methods))
-          overriden-method-names (clojure.set/intersection child-method-names
-                                                           parent-method-names)
-          methods
-          (-> (fn [methods name]
-                (let [child-method  (child-methods name)
-                      parent-method (parent-methods name)
-                      child-type    (:type child-method)
-                      parent-type   (:type parent-method)
-                      child-types   (->> child-method  :args (map :type))
-                      parent-types  (->> parent-method :args (map :type))]
-                  (cond
-                   ;; report overloading
-                   (not= child-types parent-types)
-                   (send-off error-agent report-overload
-                             child-method child-types parent-types)
-
-                   ;; report override with different return type
-                   (not= child-type parent-type)
-                   (send-off error-agent report-return-type
-                             child-method child-type parent-type)))
-                ;; remove method from methods, so as not to repeat multiple
-                ;; errors for the same method override
-                (dissoc methods name))
-              (reduce child-methods overriden-method-names))]
-      (recur methods (rest parents) error-agent))))
-
-
-
-(defmulti type-check
-  "Checks that each node in the AST has the appropriate type."
-  (fn [x & args] (ast/context x)))
-
-(defmethod type-check :default [node & args]
-  (cond
-   (= node :this)
-   (let [[scopes error-agent] args
-         this-class (:class scopes)]
-     (:name this-class))
-
-   :else
-   (throw (ex-info "Unknown context."
-                   {:type :unknown-context
-                    :node node}))))
-
-(defmethod type-check :main-class-declaration [class scopes error-agent]
-  (let [scopes (assoc scopes :class class)]
-    (type-check (-> class :methods :main :body)
-                scopes
-                error-agent)))
-
-(defmethod type-check :class-declaration [class scopes error-agent]
-  (let [scopes (assoc scopes :class class)]
-    (doseq [var (vals (:vars class))]
-      (assert-type-exists (:type var) (:class-table scopes) var error-agent))
-    (doseq [method (vals (:methods class))]
-      (type-check method scopes error-agent))))
-
-(defmethod type-check :method-declaration [method scopes error-agent]
-  (let [scopes (assoc scopes :method method)]
-    (doseq [var (vals (:vars class))]
-      (assert-type-exists (:type var) (:class-table scopes) var error-agent))
-    (let [statements (:body method)]
-      ;; type check statements except for last one
-      (doseq [statement (butlast statements)]
-        (type-check statement scopes error-agent))
-      ;; check that last statement is a return statement
-      (let [final-statement (last statements)
+  "Reports errors if class overrides one of its parents' methods without
+  using the same argument and return types. Each method is only compared
+  with the nearest method it overrides."
+  [class class-table errors]
+  (let [parent-methods (:method-table (class-table (:parent class)))]
+    (doseq [child-method (vals (:methods class))
+            :let [parent-method (get parent-methods (:name child-method))]
+            :when parent-method]
+      (let [child-type   (:type child-method)
+            parent-type  (:type parent-method)
+            child-types  (->> child-method  :args (map :type))
+            parent-types (->> parent-method :args (map :type))]
+        (cond
+         ;; report overloading
+         (not= child-types parent-types)
+         (report-overload errors
+                          child-method child-types parent-types)
+
+         ;; report override with different return type
+         (not= child-type parent-type)
+         (report-return-type errors
+                             child-method child-type parent-type))))))
+
+
+
+(extend-type MainClassDeclaration
+  TypeCheck
+  (type-check [class scopes errors]
+    (let [scopes (assoc scopes :class class)]
+      (update-in class [:methods :main :body]
+                 type-check scopes errors))))
+
+(extend-type ClassDeclaration
+  TypeCheck
+  (type-check [class scopes errors]
+    (let [scopes (assoc scopes :class class)]
+      (doseq [var (vals (:vars class))]
+        (assert-type-exists (:type var) (:class-table scopes) var errors))
+      (assoc class
+        :checked true
+        :methods (into {} (for [[name method] (:methods class)]
+                            [name (type-check method scopes errors)]))))))
+
+(extend-type MethodDeclaration
+  TypeCheck
+  (type-check [method scopes errors]
+    (let [scopes (assoc scopes :method method)]
+      (doseq [var (vals (:vars class))]
+        (assert-type-exists (:type var) (:class-table scopes) var errors))
+      (let [statements (:body method)
+            ;; type check statements except for last one
+            checked (mapv #(type-check % scopes errors) (butlast statements))
+            ;; check that last statement is a return statement
+            final-statement (last statements)
             final-statement-type (ast/context final-statement)
             tail-rec? (or (= final-statement-type :return-statement)
                           (= final-statement-type :recur-statement))]
         (when-not tail-rec?
-          (send-off error-agent report-no-return method))
-        
-        (type-check final-statement
-                    (assoc scopes :tail-rec? tail-rec?) error-agent)))))
-
-(defmethod type-check :nested-statement [statements scopes error-agent]
-  (doseq [statement statements]
-    (type-check statement scopes error-agent)))
-
-(defn- get-uninitialized
-  "Given a map of variables, returns the set of uninitialized variables."
-  [vars]
-  (set (filter (fn [[k v]] (not @(:initialized? v)))
-               vars)))
-
-(defn- deinitialize
-  "Given a collection of initialized variables, uninitializes them."
-  [uninitialized]
-  (doseq [[name var] uninitialized]
-    (reset! (:initialized? var) false)))
-
-(defmethod type-check :if-else-statement [statement scopes error-agent]
-  (let [pred (:pred statement)
-        pred-type (type-check pred scopes error-agent)]
-    (assert-type pred-type :boolean
-                 pred scopes error-agent))
-  (let [vars
-        (-> scopes :method :vars)
-
-        pre-uninitialized
-        (get-uninitialized vars)
-
-        _
-        (type-check (:then statement) scopes error-agent)
-
-        then-uninitialized
-        (get-uninitialized vars)
-
-        then-initialized
-        (clojure.set/difference pre-uninitialized
-                                then-uninitialized)
-
-        _
-        (deinitialize then-initialized)
-
-        _
-        (type-check (:else statement) scopes error-agent)
-
-        else-uninitialized
-        (get-uninitialized vars)
-
-        either-uninitialized
-        (util/symmetric-set-difference then-uninitialized
-                                       else-uninitialized)
-
-        _
-        (deinitialize either-uninitialized)]))
-
-(defmethod type-check :while-statement [statement scopes error-agent]
-  (let [pred (:pred statement)
-        pred-type (type-check pred scopes error-agent)]
-    (assert-type pred-type :boolean
-                 pred scopes error-agent))
-  (let [vars (-> scopes :method :vars)
-        pre-uninitialized (get-uninitialized vars)]
-    (type-check (:body statement) scopes error-agent)
-    (let [post-uninitialized (get-uninitialized vars)
-          either-uninitialized (util/symmetric-set-difference
-                                 pre-uninitialized
-                                 post-uninitialized)]
-      (deinitialize either-uninitialized))))
-
-(defmethod type-check :print-statement [statement scopes error-agent]
-  "Check that print statement has an int as its argument."
-  (let [arg (:arg statement)
-        arg-type (type-check arg scopes error-agent)]
-    (assert-type arg-type :int
-                 arg scopes error-agent)))
-
-(defmethod type-check :assign-statement [statement scopes error-agent]
-  (let [{:keys [target source]} statement
-        target-var (locate-var target scopes)
-        source-type (type-check source scopes error-agent)]
-    (if target-var
-      (do (assert-type source-type (:type target-var)
-                       source scopes error-agent)
-          (reset! (:initialized? target-var) true))
-      (send-off error-agent report-missing-symbol statement scopes))))
-
-(defmethod type-check :array-assign-statement [statement scopes error-agent]
-  (let [{:keys [target index source]} statement
-        target-var  (locate-var target scopes)
-        index-type  (type-check index scopes error-agent)
-        source-type (type-check source scopes error-agent)]
-    (assert-type (:type target-var) :int<>
-                 index scopes error-agent)
-    (assert-type index-type :int
-                 index scopes error-agent)
-    (assert-type source-type :int
-                 source scopes error-agent)))
-
-(defmethod type-check :return-statement [statement scopes error-agent]
-  (let [return-value (:return-value statement)
-        method-return-type (:type (:method scopes))
-        return-value-type (type-check return-value scopes error-agent)]
-    ;; check that return type matches method's return type
-    (assert-type return-value-type method-return-type
-                 return-value scopes error-agent)
-    ;; check that return is from tail position
-    (when-not (:tail-rec? scopes)
-      (send-off error-agent report-non-tail-return statement))))
-
-(defmethod type-check :recur-statement [statement scopes error-agent]
-  (let [{:keys [pred args base]} statement
-        pred-type (type-check pred scopes error-agent)
-        base-type (type-check base scopes error-agent)
-        method (:method scopes)
-        return-type (:type method)
-        required-args (:args method)]
-    (assert-type pred-type :boolean
-                 pred scopes error-agent)
-    (assert-type base-type return-type
-                 base scopes error-agent)
-    (check-args args required-args statement scopes error-agent)
-    ;; check that recur is from tail position
-    (when-not (:tail-rec? scopes)
-      (send-off error-agent report-non-tail-return statement))))
-
-(defn- binary-op-type-check [expression type scopes error-agent]
-  (let [left  (:left expression)
-        right (:right expression)
-        left-type (type-check left scopes error-agent)
-        right-type (type-check right scopes error-agent)]
-    (assert-type left-type type
-                 left scopes error-agent)
-    (assert-type right-type type
-                 right scopes error-agent)))
-
-(defmethod type-check :and-expression [expression scopes error-agent]
-  (binary-op-type-check expression :boolean scopes error-agent)
-  :boolean)
-
-(defmethod type-check :lt-expression [expression scopes error-agent]
-  (binary-op-type-check expression :int scopes error-agent)
-  :boolean)
-
-(defmethod type-check :add-expression [expression scopes error-agent]
-  (binary-op-type-check expression :int scopes error-agent)
-  :int)
-
-(defmethod type-check :sub-expression [expression scopes error-agent]
-  (binary-op-type-check expression :int scopes error-agent)
-  :int)
-
-(defmethod type-check :mul-expression [expression scopes error-agent]
-  (binary-op-type-check expression :int scopes error-agent)
-  :int)
-
-(defmethod type-check :array-access-expression [expression scopes error-agent]
-  (let [array (:array expression)
-        index (:index expression)
-        array-type (type-check array scopes error-agent)
-        index-type (type-check index scopes error-agent)]
-    (assert-type array-type :int<>
-                 array scopes error-agent)
-    (assert-type index-type :int
-                 index scopes error-agent))
-  :int)
-
-(defmethod type-check :array-length-expression [expression scopes error-agent]
-  (let [array (:array expression)
-        array-type (type-check array scopes error-agent)]
-    (assert-type array-type :int<>
-                 array scopes error-agent))
-  :int)
-
-(defmethod type-check :method-call-expression [expression scopes error-agent]
-  "Checks that the method calls an existing method with the appropriate
-  arguments. Returns the return type of the method, or nil if not found."
-  (let [{:keys [caller method args]} expression
-        caller-type (if (= caller :this)
-                      (-> scopes :class :name)
-                      (type-check caller scopes error-agent))
-        caller-class (-> scopes :class-table (get caller-type))]
-    (if-let [method (locate-method caller-class method scopes)]
-      ;; method found, check argument types
-      ;; and return method's return type regardless of correct usage
-      (do (check-args args (:args method) expression scopes error-agent)
-          (:type method))
-      ;; method not found
-      (do (send-off error-agent report-missing-method
-                    expression method)
-          nil))))
-
-(defmethod type-check :int-lit-expression [expression scopes error-agent]
-  :int)
-
-(defmethod type-check :boolean-lit-expression [expression scopes error-agent]
-  :boolean)
-
-(defmethod type-check :identifier-expression [expression scopes error-agent]
-  "Returns the type of the variable which the identifier is bound to.
-  If the variable does not exist, reports and error and returns nil."
-  (let [var (locate-var (:id expression) scopes)]
-    (if-not var
-      (do (send-off error-agent report-missing-symbol expression scopes)
-            nil)
-      (let [init (:initialized? var)]
-        ;; check for uninitialized locals
-        (when-not @init
-            (reset! init true)
-            (send-off error-agent
-                      report-use-before-init expression (:name var)))
-        (:type var)))))
-
-(defmethod type-check :array-instantiation-expression [expression scopes
-                                                       error-agent]
-  (let [size (:size expression)
-        size-type (type-check size scopes error-agent)]
-    (assert-type size-type :int
-                 size scopes error-agent))
-  :int<>)
-
-(defmethod type-check :object-instantiation-expression [expression scopes
-                                                        error-agent]
-  (let [type (:type expression)]
-    (assert-type-exists type (:class-table scopes) expression error-agent)
-    type))
-
-(defmethod type-check :not-expression [expression scopes error-agent]
-  (let [operand (:operand expression)
-        operand-type (type-check operand scopes error-agent)]
-    (assert-type operand-type :boolean
-                 operand scopes error-agent))
-  :boolean)
-
-(defmethod type-check :neg-expression [expression scopes error-agent]
-  (let [operand (:operand expression)
-        operand-type (type-check operand scopes error-agent)]
-    (assert-type operand-type :int
-                 operand scopes error-agent))
-  :int)
-
-(defn- locate-cyclic-class
-  "Locates the first class in parents which is also in visited.
-  Reports a cyclic inheritance error."
-  [parents visited error-agent]
-  (when (seq parents)
-    (let [parent (first parents)
-          parent-name (:name parent)]
-      (if (visited parent-name)
-        (do (send-off error-agent report-cyclic-inheritance parent)
-            parent-name)
-        (recur (next parents) (conj visited parent-name) error-agent)))))
+          (report-no-return errors method))
+
+        (let [final-statement (type-check final-statement
+                                          (assoc scopes :tail-rec? tail-rec?)
+                                          errors)]
+          ;; check that locals are assigned before they are used
+          (doseq [read (cfg/definite-assignment method)]
+            (report-use-before-init errors read (cfg/variable read)))
+          (assoc method
+            :body (conj checked final-statement)))))))
+
+(extend-type NestedStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (assoc statement
+      :statements (mapv #(type-check % scopes errors)
+                        (:statements statement)))))
+
+(extend-type IfElseStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (let [pred (type-check (:pred statement) scopes errors)]
+      (assert-type (:static-type pred) :boolean
+                   pred scopes errors)
+      (assoc statement
+        :pred pred
+        :then (type-check (:then statement) scopes errors)
+        :else (type-check (:else statement) scopes errors)))))
+
+(extend-type WhileStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (let [pred (type-check (:pred statement) scopes errors)]
+      (assert-type (:static-type pred) :boolean
+                   pred scopes errors)
+      (assoc statement
+        :pred pred
+        :body (type-check (:body statement) scopes errors)))))
+
+(extend-type PrintStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    "Check that print statement has an int as its argument."
+    (let [arg (type-check (:arg statement) scopes errors)]
+      (assert-type (:static-type arg) :int
+                   arg scopes errors)
+      (assoc statement :arg arg))))
+
+(extend-type AssignStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (let [target-var (resolve-var (:target statement) scopes)
+          source (type-check (:source statement) scopes errors)]
+      (if target-var
+        (assert-type (:static-type source) (:type target-var)
+                     source scopes errors)
+        (report-missing-symbol errors statement scopes))
+      (assoc statement
+        :source  source
+        :binding target-var))))
+
+(extend-type ArrayAssignStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (let [target-var (resolve-var (:target statement) scopes)
+          index  (type-check (:index  statement) scopes errors)
+          source (type-check (:source statement) scopes errors)]
+      (assert-type (:type target-var) :int<>
+                   index scopes errors)
+      (assert-type (:static-type index) :int
+                   index scopes errors)
+      (assert-type (:static-type source) :int
+                   source scopes errors)
+      (assoc statement
+        :index   index
+        :source  source
+        :binding target-var))))
+
+(extend-type ReturnStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (let [return-value (type-check (:return-value statement) scopes errors)
+          method-return-type (:type (:method scopes))]
+      ;; check that return type matches method's return type
+      (assert-type (:static-type return-value) method-return-type
+                   return-value scopes errors)
+      ;; check that return is from tail position
+      (when-not (:tail-rec? scopes)
+        (report-non-tail-return errors statement))
+      (assoc statement :return-value return-value))))
+
+(extend-type RecurStatement
+  TypeCheck
+  (type-check [statement scopes errors]
+    (let [pred (type-check (:pred statement) scopes errors)
+          base (type-check (:base statement) scopes errors)
+          method (:method scopes)
+          return-type (:type method)
+          required-args (:args method)]
+      (assert-type (:static-type pred) :boolean
+                   pred scopes errors)
+      (assert-type (:static-type base) return-type
+                   base scopes errors)
+      (let [args (check-args (:args statement) required-args scopes errors)]
+        ;; check that recur is from tail position
+        (when-not (:tail-rec? scopes)
+          (report-non-tail-return errors statement))
+        (assoc statement
+          :pred pred
+          :args args
+          :base base)))))
+
+(defn- binary-op-type-check
+  "Checks that both operands of a binary expression are of the given type,
+  and returns the expression with its operands type checked."
+  [expression type scopes errors]
+  (let [left  (type-check (:left  expression) scopes errors)
+        right (type-check (:right expression) scopes errors)]
+    (assert-type (:static-type left) type
+                 left scopes errors)
+    (assert-type (:static-type right) type
+                 right scopes errors)
+    (assoc expression
+      :left  left
+      :right right)))
+
+(extend-type AndExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (-> (binary-op-type-check expression :boolean scopes errors)
+        (typed :boolean))))
+
+(extend-type LtExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (-> (binary-op-type-check expression :int scopes errors)
+        (typed :boolean))))
+
+(extend-type AddExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (-> (binary-op-type-check expression :int scopes errors)
+        (typed :int))))
+
+(extend-type SubExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (-> (binary-op-type-check expression :int scopes errors)
+        (typed :int))))
+
+(extend-type MulExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (-> (binary-op-type-check expression :int scopes errors)
+        (typed :int))))
+
+(extend-type ArrayAccessExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (let [array (type-check (:array expression) scopes errors)
+          index (type-check (:index expression) scopes errors)]
+      (assert-type (:static-type array) :int<>
+                   array scopes errors)
+      (assert-type (:static-type index) :int
+                   index scopes errors)
+      (-> (assoc expression
+            :array array
+            :index index)
+          (typed :int)))))
+
+(extend-type ArrayLengthExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (let [array (type-check (:array expression) scopes errors)]
+      (assert-type (:static-type array) :int<>
+                   array scopes errors)
+      (-> (assoc expression :array array)
+          (typed :int)))))
+
+(extend-type MethodCallExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    "Checks that the method calls an existing method with the appropriate
+    arguments. The type of the call is the return type of the method, or nil
+    if it is not found."
+    (let [caller (type-check (:caller expression) scopes errors)
+          caller-class (-> scopes :class-table (get (:static-type caller)))
+          expression (assoc expression :caller caller)]
+      (if-let [method (locate-method caller-class (:method expression))]
+        ;; method found, check argument types
+        ;; and return method's return type regardless of correct usage
+        (-> (assoc expression
+              :args       (check-args (:args expression) (:args method)
+                                      scopes errors)
+              :descriptor (:descriptor method))
+            (typed (:type method)))
+        ;; method not found
+        (do (report-missing-method errors expression (:method expression))
+            (typed expression nil))))))
+
+(extend-type IntLitExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (typed expression :int)))
+
+(extend-type BooleanLitExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (typed expression :boolean)))
+
+(extend-type IdentifierExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    "The type of an identifier is the type of the variable which it is bound
+    to. If the variable does not exist, reports an error."
+    (let [var (resolve-var (:id expression) scopes)]
+      (when-not var
+        (report-missing-symbol errors expression scopes))
+      (-> (assoc expression :binding var)
+          (typed (:type var))))))
+
+(extend-type ArrayInstantiationExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (let [size (type-check (:size expression) scopes errors)]
+      (assert-type (:static-type size) :int
+                   size scopes errors)
+      (-> (assoc expression :size size)
+          (typed :int<>)))))
+
+(extend-type ObjectInstantiationExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (let [type (:type expression)]
+      (assert-type-exists type (:class-table scopes) expression errors)
+      (typed expression type))))
+
+(extend-type NotExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (let [operand (type-check (:operand expression) scopes errors)]
+      (assert-type (:static-type operand) :boolean
+                   operand scopes errors)
+      (-> (assoc expression :operand operand)
+          (typed :boolean)))))
+
+(extend-type NegExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    (let [operand (type-check (:operand expression) scopes errors)]
+      (assert-type (:static-type operand) :int
+                   operand scopes errors)
+      (-> (assoc expression :operand operand)
+          (typed :int)))))
+
+(extend-type ThisExpression
+  TypeCheck
+  (type-check [expression scopes errors]
+    "The type of this is the class it appears in."
+    (typed expression (-> scopes :class :name))))
 
 (defn- remove-cycles
-  "Removes inheritance cycles from the class table by iterating through
-  each class in the table and removing its parent reference if it is a
-  child of itself."
-  [class-table error-agent]
-  (-> (fn [class-table class-name]
-        (let [class (class-table class-name)
-              parents (parent-seq class class-table)]
-          (if-let [cyclic-class-name
-                   (locate-cyclic-class parents #{name} error-agent)]
-            ;; remove parent reference from class which introduces
-            ;; cyclic inheritance
-            (update-in class-table [cyclic-class-name]
-                       dissoc :parent)
-            ;; no cyclic inheritance found, change nothing
-            class-table)))
-   (reduce class-table (keys class-table))))
+  "Removes inheritance cycles from the class table, given the names of its
+  classes in source order.
+
+  Every class has at most one parent, so the classes are walked up their
+  parents once each, starting from each class in turn, and colouring each
+  class with the walk which reached it first. A walk ends at a class without
+  a parent, or at a class which is already coloured. If that class was
+  coloured by the same walk, the walk has gone around a cycle, which is
+  reported at the class in it which comes first in source order. The cycle
+  is broken by removing that class' parent reference."
+  [class-table names errors]
+  (let [order (zipmap names (range))]
+    (loop [class-table class-table
+           colours     {}
+           [start & names] names]
+      (if-not start
+        class-table
+        (let [[colours path end]
+              (loop [colours colours
+                     path    []
+                     name    start]
+                (if (or (nil? (class-table name)) (colours name))
+                  [colours path name]
+                  (recur (assoc colours name start)
+                         (conj path name)
+                         (:parent (class-table name)))))]
+          (if (and end (= start (colours end)))
+            (let [cycle (drop-while #(not= end %) path)
+                  class (class-table (apply min-key order cycle))]
+              (report-cyclic-inheritance errors class)
+              (recur (assoc-in class-table [(:name class) :parent] nil)
+                     colours
+                     names))
+            (recur class-table colours names)))))))
+
+(defn- index-hierarchy
+  "Indexes the inheritance hierarchy of a class table without cycles, which
+  is a forest, with a depth-first walk over it. Each class is given the
+  interval of the walk in which it and its subclasses are visited, under
+  :pre and :post, so that one class is a subclass of another exactly when
+  its interval lies within the other's. Each class is also given flattened
+  tables of its fields and methods, including those it inherits, under
+  :field-table and :method-table, so that looking up a member never searches
+  the parent chain."
+  [class-table]
+  (let [children (group-by :parent (vals class-table))
+        roots    (remove #(class-table (:parent %)) (vals class-table))]
+    (loop [class-table class-table
+           clock       0
+           ;; the walk is kept on an explicit stack, so that deep hierarchies
+           ;; cannot overflow the call stack
+           stack       (map #(vector :enter (:name %)) roots)]
+      (if-let [[[visit name] & stack] (seq stack)]
+        (let [class (class-table name)]
+          (case visit
+            :enter
+            (let [parent (class-table (:parent class))]
+              (recur (assoc class-table name
+                            (assoc class
+                              :pre          clock
+                              :field-table  (merge (:field-table parent)
+                                                   (:vars class))
+                              :method-table (merge (:method-table parent)
+                                                   (:methods class))))
+                     (inc clock)
+                     (concat (map #(vector :enter (:name %))
+                                  (children name))
+                             (cons [:exit name] stack))))
+
+            :exit
+            (recur (assoc class-table name (assoc class :post clock))
+                   (inc clock)
+                   stack)))
+        class-table))))
+
+(defn- check-class
+  "Performs the checks within a single class of the class table, reporting
+  errors to a collector of its own. Returns the type checked class, along
+  with the collected diagnostics, in the order of their positions in the
+  source."
+  [class class-table]
+  (let [errors (diagnostics/collector)
+        class  (binding [*source* (:origin class)]
+                 (let [scopes {:class-table class-table}]
+                   (shadow-check   class class-table errors)
+                   (override-check class class-table errors)
+                   (type-check     class scopes      errors)))]
+    [class (sort-by (juxt :line :column) (diagnostics/collected errors))]))
+
+(def ^:private check-pool
+  "Returns the fork-join pool which checks classes with the given number of
+  jobs. There is one pool for each number, kept for the life of the process,
+  so a server which checks many programs starts no threads for each. Idle
+  workers stop on their own, and do not keep the process alive."
+  (memoize (fn [jobs] (new ForkJoinPool jobs))))
+
+(defn- check-classes
+  "Checks each of the given classes, and returns the type checked class and
+  diagnostics of each, in the order the classes are given.
+
+  Once the class table is built, the checks of each class are independent of
+  every other class, so with more than one job the classes are checked on a
+  fork-join pool of that many threads, which see the dynamic bindings of the
+  calling thread."
+  [classes class-table jobs]
+  (if (= 1 jobs)
+    (mapv #(check-class % class-table) classes)
+    (let [^ForkJoinPool pool (check-pool jobs)]
+      (->> classes
+           (mapv (fn [class]
+                   (let [^Callable task (bound-fn []
+                                          (check-class class class-table))]
+                     (.submit pool task))))
+           (mapv (fn [future]
+                   (try
+                     (.get future)
+                     (catch ExecutionException e
+                       (throw (.getCause e))))))))))
 
 (defn class-table
-  "Builds the class table from an AST.
-
-  The class table is just an alternate representation of the AST, with all
-  type checking resolved, and all classes accessible in a hash map."
-  [ast parser]
-  (let [;; error agent keeps a count of all errors detected
-        ;; errors are sent to it, and reported asynchronously
-        error-agent (agent [0 parser])
-        ;; put main in class table
-        class-table (info-map [(:main ast)] error-agent)
-        ;; put other classes in class table
-        class-table (-> (:classes ast)
-                        ;; create class table
-                        (info-map class-table error-agent)
-                        ;; remove inheritance cycles
-                        (remove-cycles error-agent))
-        classes     (vals class-table)
-        scopes      {:class-table class-table}]
-    (doseq [class classes]
-      (let [parents (parent-seq class class-table)
-            scopes  (assoc scopes :parents parents)]
-        (shadow-check   class parents error-agent)
-        (override-check (:methods class) parents error-agent)
-        (type-check     class scopes  error-agent)))
-
-    (await error-agent)
-    (shutdown-agents)
-
-    [class-table (first @error-agent)]))
+  "Builds the class table from the ASTs of one or more sources.
+
+  The class table is just an alternate representation of the ASTs, with all
+  type checking resolved, and all classes accessible in a hash map. Each
+  class also carries an index of its place in the inheritance hierarchy, and
+  each class which was checked is replaced by its type checked form, which
+  records the results of the checks, and is marked :checked. Classes
+  from every source share the one table, so they may refer to each other.
+
+  The following options may be given:
+
+    :skip?  a function of a class, which returns true for the classes whose
+            checks may be skipped, such as classes which are unchanged since
+            an earlier compilation. The class table is always built in full.
+    :jobs   the number of classes to check at once, 1 by default.
+
+  Returns the class table, along with the diagnostics of the errors found.
+  The errors found while building the table come first, followed by those
+  within each class, with the classes in the order in which they appear in
+  the ASTs. Nothing is reported to the current reporter, so the checker may
+  be run any number of times, on any thread."
+  ([asts]
+     (class-table asts {}))
+  ([asts {:keys [skip? jobs]
+          :or   {skip? (constantly false), jobs 1}}]
+     (let [;; errors are collected as they are detected
+           errors      (diagnostics/collector)
+           ;; the names of the classes of the table, in source order
+           names       (->> asts
+                            (mapcat #(cons (:main %) (:classes %)))
+                            (map :name)
+                            distinct)
+           ;; put main classes in class table
+           class-table (info-map (map :main asts) errors)
+           ;; put other classes in class table
+           class-table (-> (mapcat :classes asts)
+                           ;; create class table
+                           (info-map class-table errors)
+                           ;; remove inheritance cycles
+                           (remove-cycles names errors)
+                           ;; index the hierarchy that remains
+                           (index-hierarchy))
+           ;; the classes to check, in source order
+           classes     (->> names
+                            (map class-table)
+                            (remove skip?))
+           checked     (check-classes classes class-table jobs)]
+       [(into class-table (for [[class _] checked]
+                            [(:name class) class]))
+        (into (diagnostics/collected errors)
+              (mapcat second checked))])))
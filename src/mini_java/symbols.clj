@@ -0,0 +1,60 @@
+(ns mini-java.symbols
+  "Interns identifiers into a per-compilation symbol table.
+
+  Every distinct identifier in a compilation is represented by a single Ident,
+  which holds its name. Idents are equal only when identical, so the class
+  table, method tables and variable scopes, which are all keyed by Idents,
+  never compare the underlying strings, and each name is held in memory only
+  once, no matter how many times it occurs.
+
+  Idents hash by the hash of their name, which the String caches, rather than
+  by their identity, or by the order in which they were interned. Files may
+  be parsed in parallel, which makes that order vary from run to run, and
+  the iteration order of maps keyed by Idents, and hence the order of
+  errors, must not. Idents sort by their names, for the same reason."
+  (:import [java.io Writer]
+           [java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue]))
+
+(deftype Ident [^String name]
+  Object
+  (equals [this other]
+    (identical? this other))
+  (hashCode [_]
+    (.hashCode name))
+  (toString [_]
+    name)
+
+  Comparable
+  (compareTo [_ other]
+    (compare name (.name ^Ident other))))
+
+(defmethod print-method Ident [ident ^Writer writer]
+  (.write writer (str ident)))
+
+(defn symbol-table
+  "Creates an empty symbol table. A symbol table may be shared by several
+  threads. It also holds a queue, under :front-ends, of the front ends
+  interning identifiers in it which are free, so that the parser can reuse
+  them for as long as the table lives."
+  []
+  {:idents     (new ConcurrentHashMap),
+   :front-ends (new ConcurrentLinkedQueue)})
+
+(defn size
+  "Returns the number of identifiers interned in the symbol table."
+  [table]
+  (.size ^ConcurrentHashMap (:idents table)))
+
+(defn ident
+  "Returns the Ident for the given name in the symbol table, interning it if
+  it has not been seen before. Returns nil if the name is nil.
+
+  Interning never locks. When two threads intern the same new name at once,
+  both get the Ident which reached the table first."
+  [table ^String name]
+  (when name
+    (let [^ConcurrentHashMap idents (:idents table)]
+      (or (.get idents name)
+          (let [ident (new Ident name)]
+            (or (.putIfAbsent idents name ident)
+                ident))))))
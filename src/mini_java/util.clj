@@ -1,13 +1,7 @@
 (ns mini-java.util
   "Miscellaneous utility functions."
-  (:require [clojure.set :as set]))
-
-(defn parser-filename
-  "Given an ANTLR parser, returns the name of the file it is parsing."
-  [parser]
-  (-> parser
-      .getInputStream
-      .getSourceName))
+  (:import [java.nio.file Files]
+           [java.security MessageDigest]))
 
 (defn token-line-and-column
   "Returns the line and column of the given token in the form [line column]."
@@ -16,18 +10,21 @@
         column (.getCharPositionInLine token)]
     [line column]))
 
-(defn camel->lisp
-  "Converts CamelCase to lisp-case."
-  [s]
-  (-> s
-      (clojure.string/replace #"([a-z])([A-Z])" "$1-$2")
-      clojure.string/lower-case))
+(defn in-source-order
+  "Returns the values of a map of nodes, such as the fields or methods of a
+  class, in the order in which they were declared, rather than the order of
+  the map."
+  [m]
+  (sort-by (juxt :line :column) (vals m)))
 
-(defn symmetric-set-difference
-  "Given two sets, returns all of the elements which are only contained in a
-  single set.
+(defn sha-1
+  "Returns the SHA-1 hash of the given bytes, as a hex string."
+  [^bytes bytes]
+  (->> (.digest (MessageDigest/getInstance "SHA-1") bytes)
+       (map #(format "%02x" %))
+       (apply str)))
 
-  This is done by the set operation: (s1 - s2) ∪ (s2 - s1)."
-  [s1 s2]
-  (set/union (set/difference s1 s2)
-             (set/difference s2 s1)))
+(defn read-bytes
+  "Returns the contents of the given file, as a byte array."
+  [^java.io.File file]
+  (Files/readAllBytes (.toPath file)))
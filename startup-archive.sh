@@ -0,0 +1,32 @@
+#!/bin/bash
+
+# Builds the startup-optimized JAR, target/startup/mini-javac.jar, and a
+# dynamic AppCDS archive, target/startup/mini-javac.jsa, holding every class
+# loaded while compiling all of the sample programs. Requires JDK 13 or later.
+#
+# Run the compiler with the archive as follows:
+#
+#   java -XX:SharedArchiveFile=target/startup/mini-javac.jsa \
+#        -XX:TieredStopAtLevel=1 \
+#        -jar target/startup/mini-javac.jar [options] file-or-directory...
+
+set -e
+
+JAR=target/startup/mini-javac.jar
+ARCHIVE=target/startup/mini-javac.jsa
+TRAINING=target/startup/training
+
+lein antlr4
+lein with-profile +startup uberjar
+
+# The samples are all compiled in a single JVM, including the ones with
+# errors, so that the classes used to report errors are archived too. The
+# classpath must be the JAR alone, as it will be when run with -jar.
+rm -f $ARCHIVE
+mkdir -p $TRAINING
+java -XX:ArchiveClassesAtExit=$ARCHIVE -cp $JAR clojure.main -e "
+(require 'mini-java.core)
+(doseq [file (mini-java.input/source-files [\"samples\"])]
+  (mini-java.core/run [\"-d\" \"$TRAINING\" file]))" > /dev/null 2>&1
+
+echo "Created $ARCHIVE"
@@ -0,0 +1,47 @@
+#!/bin/bash
+
+# Measures the wall time to compile samples/Cambridge/Factorial.java with each
+# build in the startup table of README.md, taking the median of five runs on a
+# single core, and prints the table. Builds both JARs and the AppCDS archive
+# as it goes, so requires JDK 13 or later, and taskset.
+
+set -e
+
+SOURCE=samples/Cambridge/Factorial.java
+OUT=target/timings
+RUNS=5
+
+mkdir -p $OUT
+
+# Runs the command given RUNS times on a single core, and prints the median
+# wall time in seconds, to one decimal place.
+median() {
+    for run in $(seq $RUNS); do
+        start=$(date +%s%N)
+        taskset -c 0 "$@" -d $OUT $SOURCE > /dev/null 2>&1
+        end=$(date +%s%N)
+        echo $(( (end - start) / 1000000 ))
+    done | sort -n | sed -n "$(( (RUNS + 1) / 2 ))p" |
+        awk '{ printf "%.1f s", $1 / 1000 }'
+}
+
+# Only the classes named by :aot are compiled before the first row is timed,
+# so that every namespace is loaded from source. The uberjar compiles :main,
+# and so is built after.
+lein do clean, antlr4, javac, compile > /dev/null
+FROM_SOURCE=$(median java -cp "$(lein classpath)" clojure.main -m mini-java.core)
+lein uberjar > /dev/null
+./startup-archive.sh > /dev/null
+
+printf '| %-49s | %-6s |\n' "Build" "Time"
+printf '|%s|%s|\n' "---------------------------------------------------" \
+       "--------"
+printf '| %-49s | %-6s |\n' "Namespaces loaded from source" "$FROM_SOURCE"
+printf '| %-49s | %-6s |\n' '`target/mini-javac.jar` (only `:main` compiled)' \
+       "$(median java -jar target/mini-javac.jar)"
+printf '| %-49s | %-6s |\n' '`target/startup/mini-javac.jar`' \
+       "$(median java -jar target/startup/mini-javac.jar)"
+printf '| %-49s | %-6s |\n' 'with the AppCDS archive and `TieredStopAtLevel=1`' \
+       "$(median java -XX:SharedArchiveFile=target/startup/mini-javac.jsa \
+                 -XX:TieredStopAtLevel=1 \
+                 -jar target/startup/mini-javac.jar)"
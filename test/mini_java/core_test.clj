@@ -0,0 +1,109 @@
+(ns mini-java.core-test
+  (:require [clojure.test           :refer :all]
+            [clojure.java.io        :as io]
+            [mini-java.core         :as core]
+            [mini-java.test-helpers :refer [temp-dir compile! class-hashes]]))
+
+(def ^:private linked-list
+  "samples/Cambridge/LinkedList.java")
+
+(deftest partial-whole-program-rebuild
+  (testing "a partial incremental rebuild at -O2 matches a clean build"
+    (let [clean   (temp-dir)
+          partial (temp-dir)]
+      (is (zero? (:exit (compile! clean [linked-list] "-O2"))))
+      (is (zero? (:exit (compile! partial [linked-list] "-O2" "--incremental"))))
+      (io/delete-file (io/file partial "List.class"))
+      (is (zero? (:exit (compile! partial [linked-list] "-O2" "--incremental"))))
+      (is (= (class-hashes clean) (class-hashes partial))))))
+
+(def ^:private callee-program
+  "A program whose main class calls A.f, which calls B.g, which is small
+  enough to inline, and in which nothing calls C. Formatted with the body
+  of B.g, and of C.h."
+  "class Main {
+    public static void main(String[] args) {
+        System.out.println(new A().f());
+    }
+}
+
+class A {
+    public int f() {
+        return new B().g();
+    }
+}
+
+class B {
+    public int g() {
+        return %s;
+    }
+}
+
+class C {
+    public int h() {
+        return %s;
+    }
+}
+")
+
+(defn- regenerated
+  "Compiles the program into the directory incrementally at -O2, with the
+  given bodies of B.g and C.h, and returns the set of names of the class
+  files which were written."
+  [directory g h]
+  (let [source (io/file directory "Program.java")
+        before (class-hashes directory)]
+    (spit source (format callee-program g h))
+    (is (zero? (:exit (compile! directory [source] "-O2" "--incremental"))))
+    (set (for [[name hash] (class-hashes directory)
+               :when (not= hash (before name))]
+           name))))
+
+(deftest changed-callees-invalidate-their-callers
+  (let [directory (temp-dir)]
+    (regenerated directory "1" "2")
+    (testing "a change to the body of an inlined method regenerates its
+              class, and the classes which call it, only"
+      (is (= #{"A.class" "B.class"} (regenerated directory "3" "2"))))
+    (testing "a change to a method nothing calls regenerates its class only"
+      (is (= #{"C.class"} (regenerated directory "3" "4"))))
+    (testing "the classes match a clean build"
+      (let [clean  (temp-dir)
+            source (io/file clean "Program.java")]
+        (spit source (format callee-program "3" "4"))
+        (is (zero? (:exit (compile! clean [source] "-O2"))))
+        (is (= (class-hashes clean) (class-hashes directory)))))))
+
+(deftest removed-classes-are-deleted
+  (let [directory (temp-dir)
+        source    (io/file directory "Program.java")
+        program   "class Main {
+    public static void main(String[] args) {
+        System.out.println(1);
+    }
+}
+
+class %s {
+    public int h() {
+        return 2;
+    }
+}
+"]
+    (spit source (format program "C"))
+    (is (zero? (:exit (compile! directory [source] "--incremental"))))
+    (spit (io/file directory "D.class") "not written by the compiler")
+    (testing "a renamed class leaves no class file behind"
+      (spit source (format program "E"))
+      (is (zero? (:exit (compile! directory [source] "--incremental"))))
+      (is (= #{"Main.class" "D.class" "E.class"}
+             (set (keys (class-hashes directory))))))
+    (testing "nor an entry in the cache"
+      (is (not (re-find #"\"C\"" (slurp (io/file directory
+                                                  ".mini-javac-cache.edn"))))))))
+
+(deftest readme-shows-the-usage
+  (let [readme (slurp "README.md")
+        start  (.indexOf readme "Usage: mini-javac")]
+    (is (= (with-out-str (core/run ["--help"]))
+           (subs readme start (.indexOf readme "```" start)))
+        "the options in README.md are those, and aligned as, --help prints")))
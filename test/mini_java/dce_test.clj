@@ -0,0 +1,85 @@
+(ns mini-java.dce-test
+  (:require [clojure.test  :refer :all]
+            [mini-java.dce :as dce]))
+
+(defn- const
+  [value]
+  {:op :const, :type :int, :value (int value)})
+
+(defn- local
+  [slot]
+  {:op :local, :slot slot, :type :int})
+
+(defn- store
+  [slot value]
+  {:op :store, :slot slot, :type :int, :value value})
+
+(def ^:private call
+  {:op :call, :owner "A", :name "f", :descriptor "()I", :type :int,
+   :receiver {:op :this}, :args []})
+
+(defn- method
+  "Builds a method from blocks given as [label code exit], laid out in the
+  order given, and entered at the first."
+  [& blocks]
+  {:entry  (ffirst blocks),
+   :slots  4,
+   :args   [:int],
+   :layout (mapv first blocks),
+   :blocks (into {} (for [[label code exit] blocks]
+                      [label {:label label, :code code, :exit exit}]))})
+
+(defn- eliminate
+  "Eliminates the dead code of a method with a single block running the
+  given code, and then returning local 2. Returns the code left."
+  [code]
+  (-> (method [0 code {:op :return, :value (local 2)}])
+      (dce/eliminate-dead-code nil)
+      (get-in [:blocks 0 :code])))
+
+(deftest dead-stores-of-pure-values-are-removed
+  (is (= [(store 2 (const 2))]
+         (eliminate [(store 3 (const 1))
+                     (store 2 (const 2))])))
+  (testing "along with the stores feeding them"
+    (is (= [(store 2 (const 2))]
+           (eliminate [(store 3 (const 1))
+                       (store 3 {:op :add, :left (local 3),
+                                 :right (local 1)})
+                       (store 2 (const 2))]))))
+  (testing "a store overwritten before it is read"
+    (is (= [(store 2 (const 2))]
+           (eliminate [(store 2 (const 1))
+                       (store 2 (const 2))])))))
+
+(deftest stores-with-effects-are-kept
+  (testing "a call"
+    (is (= [(store 3 call) (store 2 (const 2))]
+           (eliminate [(store 3 call) (store 2 (const 2))]))))
+  (testing "a new object"
+    (let [new {:op :new, :type "A"}]
+      (is (= [(store 3 new) (store 2 (const 2))]
+             (eliminate [(store 3 new) (store 2 (const 2))])))))
+  (testing "a read of an array, which may throw"
+    (let [load {:op :array-load, :array (local 1), :index (const 0)}]
+      (is (= [(store 3 load) (store 2 (const 2))]
+             (eliminate [(store 3 load) (store 2 (const 2))]))))))
+
+(deftest stores-read-in-loops-are-kept
+  (let [loop (method [0 [(store 2 (const 0))] {:op :goto, :target 1}]
+                     [1 [] {:op   :branch,
+                            :test {:op :lt, :left (local 2), :right (local 1)},
+                            :then 2,
+                            :else 3}]
+                     [2 [(store 2 {:op :add, :left (local 2),
+                                   :right (const 1)})]
+                      {:op :goto, :target 1}]
+                     [3 [] {:op :return, :value (local 2)}])]
+    (is (= loop (dce/eliminate-dead-code loop nil)))))
+
+(deftest unreachable-blocks-are-removed
+  (let [eliminated (dce/eliminate-dead-code
+                    (method [0 [] {:op :return, :value (local 1)}]
+                            [1 [(store 2 call)] {:op :goto, :target 0}])
+                    nil)]
+    (is (= [0] (:layout eliminated)))))
@@ -0,0 +1,66 @@
+(ns mini-java.devirtualize-test
+  (:require [clojure.test           :refer :all]
+            [mini-java.devirtualize :as devirtualize]
+            [mini-java.optimize     :as optimize]
+            [mini-java.test-helpers :refer [checked-class-table method-ir
+                                            expressions]]))
+
+(def ^:private program
+  "class Main {
+    public static void main(String[] args) {
+        System.out.println(new Caller().run(new Sub()));
+    }
+}
+
+class Base {
+    public int inherited() {
+        return 1;
+    }
+
+    public int overridden() {
+        return 2;
+    }
+}
+
+class Sub extends Base {
+    public int overridden() {
+        return 3;
+    }
+}
+
+class Caller {
+    public int run(Sub sub) {
+        int r;
+        Base base;
+        base = sub;
+        r = sub.inherited();
+        r = base.overridden();
+        r = sub.overridden();
+        return r;
+    }
+}
+")
+
+(defn- devirtualized-calls
+  "Returns the calls of Caller.run once devirtualized, by the name of the
+  class they are made on, and the name of the method they call."
+  []
+  (let [class-table (checked-class-table program)
+        context     (optimize/context class-table 2)
+        method      (devirtualize/devirtualize
+                     (method-ir class-table "Caller" "run") context)]
+    (into {} (for [expression (expressions method)
+                   :when (= :call (:op expression))]
+               [[(str (-> expression :receiver :type)) (str (:name expression))]
+                expression]))))
+
+(deftest calls-to-methods-never-overridden-become-direct
+  (let [calls (devirtualized-calls)]
+    (testing "an inherited method is called on the class declaring it"
+      (is (:direct (calls ["Sub" "inherited"])))
+      (is (= "Base" (str (:owner (calls ["Sub" "inherited"]))))))
+    (testing "a method overridden by a subclass stays virtual"
+      (is (not (:direct (calls ["Base" "overridden"])))))
+    (testing "the override itself, which nothing overrides, is direct"
+      (is (:direct (calls ["Sub" "overridden"])))
+      (is (= "Sub" (str (:owner (calls ["Sub" "overridden"]))))))))
@@ -0,0 +1,108 @@
+(ns mini-java.fold-test
+  (:require [clojure.test  :refer :all]
+            [mini-java.fold :as fold]))
+
+(defn- const
+  [value]
+  {:op :const, :type (if (instance? Boolean value) :boolean :int),
+   :value (if (instance? Boolean value) value (int value))})
+
+(defn- local
+  [slot]
+  {:op :local, :slot slot, :type :int})
+
+(def ^:private call
+  {:op :call, :owner "A", :name "f", :descriptor "()I", :type :int,
+   :receiver {:op :this}, :args []})
+
+(defn- method
+  "Builds a method with one argument from blocks given as [label code exit],
+  laid out in the order given, and entered at the first."
+  [& blocks]
+  {:entry  (ffirst blocks),
+   :slots  3,
+   :args   [:int],
+   :layout (mapv first blocks),
+   :blocks (into {} (for [[label code exit] blocks]
+                      [label {:label label, :code code, :exit exit}]))})
+
+(defn- fold-return
+  "Folds a method which returns the given expression, and returns the
+  folded expression."
+  [expression]
+  (-> (method [0 [] {:op :return, :value expression}])
+      (fold/fold-constants nil)
+      (get-in [:blocks 0 :exit :value])))
+
+(deftest arithmetic-overflows-as-ints
+  (is (= (const Integer/MIN_VALUE)
+         (fold-return {:op :add, :left (const Integer/MAX_VALUE),
+                       :right (const 1)})))
+  (is (= (const Integer/MAX_VALUE)
+         (fold-return {:op :sub, :left (const Integer/MIN_VALUE),
+                       :right (const 1)})))
+  (is (= (const (unchecked-multiply-int 65536 65536))
+         (fold-return {:op :mul, :left (const 65536), :right (const 65536)})))
+  (is (= (const Integer/MIN_VALUE)
+         (fold-return {:op :neg, :operand (const Integer/MIN_VALUE)}))))
+
+(deftest multiplying-by-zero-keeps-effects
+  (testing "a pure operand is dropped"
+    (is (= (const 0)
+           (fold-return {:op :mul, :left (local 1), :right (const 0)}))))
+  (testing "a call is kept"
+    (is (= {:op :mul, :left call, :right (const 0)}
+           (fold-return {:op :mul, :left call, :right (const 0)}))))
+  (testing "so is a read of an array, which may throw"
+    (let [load {:op :array-load, :array (local 1), :index (const 0)}]
+      (is (= {:op :mul, :left (const 0), :right load}
+             (fold-return {:op :mul, :left (const 0), :right load}))))))
+
+(deftest and-skips-its-right-operand
+  (is (= (const false)
+         (fold-return {:op :and, :left (const false), :right call})))
+  (testing "a false right operand only replaces a pure left one"
+    (is (= {:op :and, :left call, :right (const false)}
+           (fold-return {:op :and, :left call, :right (const false)})))))
+
+(defn- join
+  "Builds a method which branches on its argument to a block which runs
+  then-code, or one which runs else-code, and then returns local 2."
+  [then-code else-code]
+  (method [0 [] {:op :branch, :test {:op :lt, :left (local 1),
+                                     :right (const 0)},
+                 :then 1, :else 2}]
+          [1 then-code {:op :goto, :target 3}]
+          [2 else-code {:op :goto, :target 3}]
+          [3 [] {:op :return, :value (local 2)}]))
+
+(defn- store
+  [slot value]
+  {:op :store, :slot slot, :type :int, :value (const value)})
+
+(deftest meet-of-locals
+  (testing "a local assigned along one edge only takes the value from it"
+    (is (= (const 5)
+           (-> (join [(store 2 5)] [])
+               (fold/fold-constants nil)
+               (get-in [:blocks 3 :exit :value])))))
+  (testing "a local assigned the same value along both edges"
+    (is (= (const 5)
+           (-> (join [(store 2 5)] [(store 2 5)])
+               (fold/fold-constants nil)
+               (get-in [:blocks 3 :exit :value])))))
+  (testing "a local assigned different values varies"
+    (is (= (local 2)
+           (-> (join [(store 2 5)] [(store 2 6)])
+               (fold/fold-constants nil)
+               (get-in [:blocks 3 :exit :value]))))))
+
+(deftest constant-branches-become-jumps
+  (let [folded (-> (method [0 [(store 2 1)]
+                            {:op :branch, :test {:op :lt, :left (local 2),
+                                                 :right (const 2)},
+                             :then 1, :else 2}]
+                           [1 [] {:op :return, :value (const 1)}]
+                           [2 [] {:op :return, :value (const 2)}])
+                   (fold/fold-constants nil))]
+    (is (= {:op :goto, :target 1} (get-in folded [:blocks 0 :exit])))))
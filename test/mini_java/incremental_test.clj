@@ -0,0 +1,119 @@
+(ns mini-java.incremental-test
+  (:require [clojure.test           :refer :all]
+            [clojure.java.io        :as io]
+            [clojure.string         :as string]
+            [mini-java.incremental  :as incremental]
+            [mini-java.parser       :as parser]
+            [mini-java.symbols      :as symbols]
+            [mini-java.test-helpers :refer [temp-dir compile! class-hashes]]))
+
+(def ^:private program
+  "class Main {
+    public static void main(String[] args) {
+        System.out.println(new B().get());
+    }
+}
+
+class A {
+    public int get() {
+        return 1;
+    }
+}
+
+class B extends A {
+    public int get() {
+        return 2;
+    }
+}
+
+class C extends B {
+    public int get() {
+        return 3;
+    }
+}
+")
+
+(defn- parses
+  "Calls f, and returns the number of sources parsed in full, and the text
+  of each fragment of class declarations parsed, while it ran."
+  [f]
+  (let [full      (atom 0)
+        fragments (atom [])
+        parse     parser/parse-source
+        fragment  parser/class-declarations]
+    (with-redefs [parser/parse-source       (fn [& args]
+                                              (swap! full inc)
+                                              (apply parse args))
+                  parser/class-declarations (fn [text & args]
+                                              (swap! fragments conj text)
+                                              (apply fragment text args))]
+      (f))
+    [@full @fragments]))
+
+(deftest edit-between-compilations
+  (let [directory (temp-dir)
+        source    (io/file directory "Program.java")
+        edited    (string/replace program "return 2;" "return 5;")]
+    (binding [incremental/*sources* (incremental/sources)]
+      (spit source program)
+      (testing "a new file is parsed in full"
+        (is (= [1 []] (parses #(compile! directory [source])))))
+      (testing "an unchanged file is not parsed again"
+        (is (= [0 []] (parses #(compile! directory [source])))))
+      (spit source edited)
+      (testing "an edit only re-parses the class declaration it touches"
+        (let [[full fragments] (parses #(compile! directory [source]))]
+          (is (zero? full))
+          (is (= 1 (count fragments)))
+          (is (.contains ^String (first fragments) "class B"))
+          (is (not (.contains ^String (first fragments) "class A")))
+          (is (not (.contains ^String (first fragments) "class C"))))))
+    (testing "the classes compiled after the edit match a clean build"
+      (let [clean (temp-dir)]
+        (spit (io/file clean "Program.java") edited)
+        (is (zero? (:exit (compile! clean [(io/file clean "Program.java")]))))
+        (is (= (class-hashes clean) (class-hashes directory)))))))
+
+(deftest syntax-errors-between-compilations
+  (let [directory (temp-dir)
+        source    (io/file directory "Program.java")]
+    (binding [incremental/*sources* (incremental/sources)]
+      (spit source program)
+      (compile! directory [source])
+      (spit source (string/replace program "return 2;" "return 2"))
+      (testing "an edit which breaks a class reports its syntax errors"
+        (let [{:keys [exit output]} (compile! directory [source])]
+          (is (= 1 exit))
+          (is (.contains ^String output "1 error occurred."))))
+      (testing "the syntax errors of an unchanged file are reported again"
+        (let [{:keys [exit output]} (compile! directory [source])]
+          (is (= 1 exit))
+          (is (.contains ^String output "1 error occurred.")))))))
+
+(deftest sources-no-longer-compiled-are-dropped
+  (let [directory (temp-dir)
+        program-a (io/file directory "A.java")
+        program-b (io/file directory "B.java")
+        store     (incremental/sources)]
+    (spit program-a program)
+    (spit program-b program)
+    (binding [incremental/*sources* store]
+      (compile! (temp-dir) [program-a])
+      (compile! (temp-dir) [program-b])
+      (is (= [(.getCanonicalPath program-b)] (keys (:parsed @store)))))))
+
+(deftest symbol-table-growth-empties-the-store
+  (let [directory (temp-dir)
+        source    (io/file directory "Program.java")
+        store     (incremental/sources)]
+    (binding [incremental/*sources* store]
+      (spit source program)
+      (compile! directory [source])
+      (let [{:keys [symbols limit]} @store]
+        (is (= limit (* 2 (symbols/size symbols))))
+        ;; each renaming of the method interns a new identifier
+        (doseq [i (range limit)]
+          (spit source (string/replace program "get()" (str "get" i "()")))
+          (compile! directory [source]))
+        (is (not (identical? symbols (:symbols @store))))
+        (is (<= (symbols/size (:symbols @store)) limit))))))
@@ -0,0 +1,96 @@
+(ns mini-java.inline-test
+  (:require [clojure.test           :refer :all]
+            [mini-java.devirtualize :as devirtualize]
+            [mini-java.inline       :as inline]
+            [mini-java.optimize     :as optimize]
+            [mini-java.test-helpers :refer [checked-class-table method-ir
+                                            calls]]))
+
+(def ^:private program
+  "class Main {
+    public static void main(String[] args) {
+        System.out.println(new Caller().small(new Leaf()));
+    }
+}
+
+class Leaf {
+    public int small() {
+        return 1;
+    }
+
+    public int large() {
+        int a;
+        a = 1;
+        a = a + a + a + a + a + a + a + a;
+        a = a * a * a * a * a * a * a * a;
+        return a;
+    }
+
+    public int overridden() {
+        return 2;
+    }
+
+    public boolean yes() {
+        return true;
+    }
+}
+
+class Sub extends Leaf {
+    public int overridden() {
+        return 3;
+    }
+}
+
+class Caller {
+    public int small(Leaf leaf) {
+        return leaf.small();
+    }
+
+    public int large(Leaf leaf) {
+        return leaf.large();
+    }
+
+    public int overridden(Leaf leaf) {
+        return leaf.overridden();
+    }
+
+    public boolean right(Leaf leaf, boolean b) {
+        boolean r;
+        r = b && leaf.yes();
+        return r;
+    }
+
+    public boolean left(Leaf leaf, boolean b) {
+        boolean r;
+        r = leaf.yes() && b;
+        return r;
+    }
+}
+")
+
+(defn- inlined
+  "Returns the IR of the named method of Caller, once its calls have been
+  devirtualized and inlined."
+  [method-name]
+  (let [class-table (checked-class-table program)
+        context     (optimize/context class-table 2)]
+    (-> (method-ir class-table "Caller" method-name)
+        (devirtualize/devirtualize context)
+        (inline/inline context))))
+
+(deftest small-methods-never-overridden-are-inlined
+  (let [method (inlined "small")]
+    (is (empty? (calls method)))
+    (is (< 2 (:slots method))
+        "the receiver is stored in a local of its own")))
+
+(deftest methods-over-the-budget-are-not-inlined
+  (is (= #{"large"} (calls (inlined "large")))))
+
+(deftest overridden-methods-are-not-inlined
+  (is (= #{"overridden"} (calls (inlined "overridden")))))
+
+(deftest calls-on-the-right-of-and-are-not-inlined
+  (is (= #{"yes"} (calls (inlined "right"))))
+  (testing "a call on the left is always evaluated, so it is"
+    (is (empty? (calls (inlined "left"))))))
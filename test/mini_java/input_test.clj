@@ -0,0 +1,45 @@
+(ns mini-java.input-test
+  (:require [clojure.test    :refer :all]
+            [mini-java.input :as input])
+  (:import [mini_java.input AsciiCharStream]
+           [org.antlr.v4.runtime ANTLRInputStream CharStream]
+           [org.antlr.v4.runtime.misc Interval]))
+
+(defn- walk
+  "Consumes every character of a stream, seeking back and forth on the way,
+  and returns everything the stream answered."
+  [^CharStream stream]
+  (let [size     (.size stream)
+        consumed (doall
+                  (for [i (range (inc size))]
+                    (let [answers [(.index stream) (.LA stream -1)
+                                   (.LA stream 0) (.LA stream 1)
+                                   (.LA stream 2)
+                                   (.getText stream
+                                             (Interval/of (max 0 (- i 3)) i))]]
+                      (when (< i size)
+                        (.consume stream))
+                      answers)))
+        back     (do (.seek stream 2)
+                     [(.index stream) (.LA stream 1)])
+        past     (do (.seek stream (* 2 size))
+                     [(.index stream) (.LA stream 1)])]
+    [consumed back past
+     (.getText stream (Interval/of 0 (* 2 size)))
+     (.getSourceName stream)]))
+
+(deftest ascii-sources-are-read-from-their-buffer
+  (let [text   "class Main {\r\n  // x < y\n}"
+        source (input/string-source "Test.java" text)
+        stream (input/char-stream source false)]
+    (is (instance? AsciiCharStream stream))
+    (is (= (walk (doto (new ANTLRInputStream text)
+                   (-> .name (set! "Test.java"))))
+           (walk stream)))
+    (is (thrown? IllegalStateException (.consume stream)))))
+
+(deftest other-sources-are-decoded
+  (is (not (instance? AsciiCharStream
+                      (input/char-stream
+                       (input/string-source "Test.java" "// café\n")
+                       false)))))
@@ -0,0 +1,36 @@
+(ns mini-java.parser-test
+  (:require [clojure.test      :refer :all]
+            [mini-java.parser  :as parser]
+            [mini-java.symbols :as symbols]))
+
+(def ^:private samples
+  ["samples/Cambridge/Factorial.java"
+   "samples/Cambridge/BinarySearch.java"
+   "samples/Cambridge/LinkedList.java"
+   "samples/Cambridge/TreeVisitor.java"])
+
+(defn- parse-recording
+  "Parses the samples with the symbol table on the given number of threads,
+  and returns the set of front ends they were parsed with."
+  [symbols jobs]
+  (let [used (atom #{})]
+    (parser/parse-files samples false symbols jobs
+                        (fn [source-file unbuffered? front-end]
+                          (swap! used conj front-end)
+                          (parser/mini-java source-file unbuffered?
+                                            front-end)))
+    @used))
+
+(deftest front-ends-are-reused-across-calls
+  (let [symbols (symbols/symbol-table)
+        earlier (parse-recording symbols 1)]
+    (is (= 1 (count earlier)))
+    (is (= earlier (parse-recording symbols 1))
+        "a later call with the same table reuses its front end")
+    (is (empty? (filter (parse-recording (symbols/symbol-table) 1) earlier))
+        "another table has front ends of its own"))
+  (testing "no more front ends are ever created than threads parse at once"
+    (let [symbols (symbols/symbol-table)]
+      (is (<= (count (into (parse-recording symbols 4)
+                           (parse-recording symbols 4)))
+              4)))))
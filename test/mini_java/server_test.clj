@@ -0,0 +1,112 @@
+(ns mini-java.server-test
+  (:require [clojure.test           :refer :all]
+            [clojure.edn            :as edn]
+            [clojure.java.io        :as io]
+            [mini-java.client       :as client]
+            [mini-java.server       :as server]
+            [mini-java.test-helpers :refer [temp-dir class-hashes]])
+  (:import [java.net InetAddress Socket]
+           [java.nio.file Files LinkOption]))
+
+(def ^:private port
+  17463)
+
+(def ^:private linked-list
+  "samples/Cambridge/LinkedList.java")
+
+(defn- send-line
+  "Sends a raw line to the server, and returns its response."
+  [line]
+  (with-open [socket (new Socket (InetAddress/getLoopbackAddress) (int port))
+              reader (io/reader socket)
+              writer (io/writer socket)]
+    (when line
+      (.write writer (str line "\n")))
+    (.flush writer)
+    (.shutdownOutput socket)
+    (edn/read-string (.readLine reader))))
+
+(defn- await-token
+  "Waits for the server to write its token file, for up to ten seconds.
+  Rethrows the server's exception if it stops before doing so."
+  [running]
+  (let [deadline (+ (System/currentTimeMillis) 10000)]
+    (loop []
+      (cond
+       (.isFile (server/token-file port))
+       nil
+
+       (realized? running)
+       @running
+
+       (> (System/currentTimeMillis) deadline)
+       (throw (ex-info "the server did not start in time" {:port port}))
+
+       :else
+       (do (Thread/sleep 50)
+           (recur))))))
+
+(defn- with-server
+  "Runs the tests against a server, whose token file is kept in a temporary
+  directory."
+  [f]
+  (let [property  "mini-javac.token-dir"
+        old-value (System/getProperty property)]
+    (System/setProperty property (str (temp-dir)))
+    (try
+      (let [running (future (server/serve port))]
+        (await-token running)
+        (try
+          (f)
+          (finally
+            (client/request port {:op :stop})
+            @running)))
+      (finally
+        (if old-value
+          (System/setProperty property old-value)
+          (System/clearProperty property))))))
+
+(use-fixtures :once with-server)
+
+(deftest token-file-is-private
+  (is (= "rw-------"
+         (java.nio.file.attribute.PosixFilePermissions/toString
+          (Files/getPosixFilePermissions (.toPath (server/token-file port))
+                                         (make-array LinkOption 0))))))
+
+(deftest requests-need-the-token
+  (is (= 1 (:exit (send-line "{:op :stats}"))))
+  (is (= 1 (:exit (send-line "{:op :stop, :token \"wrong\"}"))))
+  (is (= 0 (:exit (client/request port {:op :stats})))))
+
+(deftest malformed-requests-are-answered
+  (is (= 1 (:exit (send-line nil))))
+  (is (= 1 (:exit (send-line "{:op"))))
+  (is (= 1 (:exit (send-line "[:op :stats]"))))
+  (is (= 1 (:exit (client/request port {:op :compile, :args [1], :cwd "."}))))
+  (is (= 0 (:exit (client/request port {:op :stats})))))
+
+(deftest long-requests-are-refused
+  (let [response (send-line (apply str (repeat (inc (* 1024 1024)) "a")))]
+    (is (= 1 (:exit response)))
+    (is (= "request too long\n" (:err response)))))
+
+(deftest concurrent-compilations-of-a-file
+  (let [cwd         (System/getProperty "user.dir")
+        directories (repeatedly 8 temp-dir)
+        responses   (doall
+                     (for [directory directories]
+                       (future
+                         (client/request port {:op   :compile,
+                                               :args ["-d" (str directory)
+                                                      linked-list],
+                                               :cwd  cwd}))))]
+    (is (every? (comp zero? :exit deref) responses))
+    (is (apply = (map class-hashes directories)))))
+
+(deftest least-recently-used-sources-are-dropped
+  (let [kept   (atom {})
+        stores (mapv #(#'server/sources-for! kept (str "/dir" %)) (range 9))]
+    (is (= 8 (count @kept)))
+    (is (not (contains? @kept "/dir0")))
+    (is (identical? (stores 8) (#'server/sources-for! kept "/dir8")))))
@@ -0,0 +1,111 @@
+(ns mini-java.simplify-test
+  (:require [clojure.test           :refer :all]
+            [mini-java.ir           :as ir]
+            [mini-java.simplify     :as simplify]
+            [mini-java.test-helpers :refer [checked-class-table method-ir]]))
+
+(defn- goto
+  [target]
+  {:op :goto, :target target})
+
+(defn- print-const
+  [value]
+  {:op :print, :value {:op :const, :type :int, :value (int value)}})
+
+(def ^:private return
+  {:op :return, :value {:op :const, :type :int, :value (int 0)}})
+
+(defn- method
+  "Builds a method from blocks given as [label code exit], laid out in the
+  order given, and entered at the first."
+  [& blocks]
+  {:entry  (ffirst blocks),
+   :slots  1,
+   :args   [],
+   :layout (mapv first blocks),
+   :blocks (into {} (for [[label code exit] blocks]
+                      [label {:label label, :code code, :exit exit}]))})
+
+(deftest jumps-through-empty-blocks-are-threaded
+  (let [simplified (simplify/simplify-cfg
+                    (method [0 [] {:op   :branch,
+                                   :test {:op :local, :slot 1, :type :boolean},
+                                   :then 1,
+                                   :else 2}]
+                            [1 [] (goto 3)]
+                            [2 [(print-const 2)] (goto 3)]
+                            [3 [(print-const 3)] return])
+                    nil)]
+    (is (= [0 2 3] (:layout simplified)))
+    (is (= 3 (get-in simplified [:blocks 0 :exit :then]))
+        "the empty block is skipped")))
+
+(deftest unreachable-blocks-are-removed
+  (let [simplified (simplify/simplify-cfg
+                    (method [0 [(print-const 0)] return]
+                            [1 [(print-const 1)] (goto 0)])
+                    nil)]
+    (is (= [0] (:layout simplified)))
+    (is (= #{0} (set (keys (:blocks simplified)))))))
+
+(deftest straight-line-chains-are-merged
+  (let [n          1000
+        simplified (simplify/simplify-cfg
+                    (apply method
+                           (concat (for [i (range n)]
+                                     [i [(print-const i)] (goto (inc i))])
+                                   [[n [] return]]))
+                    nil)]
+    (is (= [0] (:layout simplified)))
+    (is (= (map print-const (range n))
+           (get-in simplified [:blocks 0 :code])))
+    (is (= return (get-in simplified [:blocks 0 :exit])))))
+
+(deftest joins-and-loops-are-not-merged
+  (testing "a block with two predecessors"
+    (let [simplified (simplify/simplify-cfg
+                      (method [0 [] {:op   :branch,
+                                     :test {:op :local, :slot 1,
+                                            :type :boolean},
+                                     :then 1,
+                                     :else 2}]
+                              [1 [(print-const 1)] (goto 3)]
+                              [2 [(print-const 2)] (goto 3)]
+                              [3 [(print-const 3)] return])
+                      nil)]
+      (is (= [0 1 2 3] (:layout simplified)))))
+  (testing "the entry, which a tail call jumps back to"
+    (let [simplified (simplify/simplify-cfg
+                      (method [0 [(print-const 0)] (goto 1)]
+                              [1 [(print-const 1)] (goto 0)])
+                      nil)]
+      (is (= [0] (:layout simplified)))
+      (is (= (goto 0) (get-in simplified [:blocks 0 :exit]))))))
+
+(deftest and-is-lowered-to-a-branch-per-operand
+  (let [class-table (checked-class-table
+                     "class Main {
+    public static void main(String[] args) {
+        System.out.println(0);
+    }
+}
+
+class A {
+    public int f(boolean a, boolean b) {
+        int r;
+        if (a && b) r = 1; else r = 2;
+        return r;
+    }
+}
+")
+        lowered     (method-ir class-table "A" "f")
+        tests       (for [block (vals (:blocks lowered))
+                          :when (= :branch (-> block :exit :op))]
+                      (-> block :exit :test))]
+    (is (= #{{:op :local, :slot 1, :type :boolean}
+             {:op :local, :slot 2, :type :boolean}}
+           (set (map #(select-keys % [:op :slot :type]) tests))))
+    (is (not-any? #(= :and (:op %)) tests))
+    (is (= (set (:layout lowered)) (set (keys (:blocks lowered)))))
+    (is (every? #(every? (set (:layout lowered)) (ir/successors %))
+                (vals (:blocks lowered))))))
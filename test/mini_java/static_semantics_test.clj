@@ -0,0 +1,65 @@
+(ns mini-java.static-semantics-test
+  (:require [clojure.test               :refer :all]
+            [mini-java.input            :as input]
+            [mini-java.parser           :as parser]
+            [mini-java.static-semantics :as static-semantics]
+            [mini-java.symbols          :as symbols]))
+
+(defn- diagnostics
+  "Parses and checks the text of a program, which must parse, with the given
+  options, and returns the diagnostics of its semantic errors."
+  ([text]
+     (diagnostics text {}))
+  ([text options]
+     (let [source       (input/string-source "Test.java" text)
+           [ast errors] (parser/parse-source source false
+                                             (parser/front-end
+                                              (symbols/symbol-table)))]
+       (assert (zero? errors))
+       (second (static-semantics/class-table [ast] options)))))
+
+(defn- program
+  "Returns a program whose main method calls A.f(int, int) with the given
+  arguments."
+  [args]
+  (str "class Main {
+    public static void main(String[] args) {
+        System.out.println(new A().f(" args "));
+    }
+}
+
+class A {
+    public int f(int a, int b) {
+        return a + b;
+    }
+}
+"))
+
+(deftest wrong-number-of-args
+  (testing "only the count is reported, not the types of the arguments"
+    (let [errors (diagnostics (program "true"))]
+      (is (= 1 (count errors)))
+      (is (= "wrong number of args given (2 required)"
+             (:message (first errors))))))
+  (testing "the errors within the arguments are still reported"
+    (is (= 2 (count (diagnostics (program "1, 2, x")))))))
+
+(deftest wrong-types-of-args
+  (is (= 1 (count (diagnostics (program "1, true"))))))
+
+(deftest classes-checked-in-parallel
+  (let [text (str (program "1, true")
+                  "
+class B {
+    public int g() {
+        return new A().f(false, 1);
+    }
+}
+")]
+    (testing "the diagnostics are those, in the order, of a single job"
+      (is (= (map #(dissoc % :source) (diagnostics text))
+             (map #(dissoc % :source) (diagnostics text {:jobs 4}))
+             (map #(dissoc % :source) (diagnostics text {:jobs 4})))))
+    (testing "every check with the same number of jobs shares one pool"
+      (is (identical? (#'static-semantics/check-pool 4)
+                      (#'static-semantics/check-pool 4))))))
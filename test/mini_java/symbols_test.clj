@@ -0,0 +1,26 @@
+(ns mini-java.symbols-test
+  (:require [clojure.test      :refer :all]
+            [mini-java.symbols :as symbols]))
+
+(deftest names-are-interned-once
+  (let [table    (symbols/symbol-table)
+        names    (mapv #(str "name" %) (range 1000))
+        ;; each thread interns every name, in an order of its own
+        threads  (doall (repeatedly 8 #(future
+                                         (into {} (for [name (shuffle names)]
+                                                    [name (symbols/ident
+                                                           table name)])))))
+        interned (map deref threads)]
+    (is (every? (fn [name]
+                  (let [idents (map #(% name) interned)]
+                    (every? #(identical? (first idents) %) idents)))
+                names))
+    (is (= 1000 (symbols/size table)))))
+
+(deftest idents-are-equal-only-when-identical
+  (let [a (symbols/ident (symbols/symbol-table) "x")
+        b (symbols/ident (symbols/symbol-table) "x")]
+    (is (not= a b))
+    (is (= (hash a) (hash b)))
+    (is (zero? (compare a b)))
+    (is (= "x" (str a)))))
@@ -0,0 +1,81 @@
+(ns mini-java.test-helpers
+  "Helpers shared by the tests which compile sources, or check and lower
+  them into the IR."
+  (:require [clojure.java.io            :as io]
+            [mini-java.core             :as core]
+            [mini-java.input            :as input]
+            [mini-java.ir               :as ir]
+            [mini-java.parser           :as parser]
+            [mini-java.static-semantics :as static-semantics]
+            [mini-java.symbols          :as symbols]
+            [mini-java.util             :as util])
+  (:import [java.nio.file Files]
+           [java.nio.file.attribute FileAttribute]))
+
+(defn temp-dir
+  "Creates a new temporary directory, and returns it."
+  []
+  (.toFile (Files/createTempDirectory "mini-java-test"
+                                      (make-array FileAttribute 0))))
+
+(defn compile!
+  "Compiles the sources into the directory with the given options. Returns
+  a map of the exit status, under :exit, and everything printed to *out* or
+  *err*, under :output."
+  [directory sources & options]
+  (let [exit   (atom nil)
+        output (with-out-str
+                 (binding [*err* *out*]
+                   (reset! exit (core/run (concat options
+                                                  ["-d" (str directory)]
+                                                  (map str sources))))))]
+    {:exit   @exit,
+     :output output}))
+
+(defn class-hashes
+  "Returns a map from the name of each class file in the directory to the
+  hash of its contents."
+  [directory]
+  (into {} (for [^java.io.File file (.listFiles (io/file directory))
+                 :when (.endsWith (.getName file) ".class")]
+             [(.getName file) (util/sha-1 (util/read-bytes file))])))
+
+(defn checked-class-table
+  "Parses and checks the text of a program, which must be free of errors,
+  and returns its class table."
+  [text]
+  (let [source        (input/string-source "Test.java" text)
+        [ast errors]  (parser/parse-source source false
+                                           (parser/front-end
+                                            (symbols/symbol-table)))
+        [class-table diagnostics] (static-semantics/class-table [ast])]
+    (assert (and (zero? errors) (empty? diagnostics))
+            (str "the program has errors: " (pr-str diagnostics)))
+    class-table))
+
+(defn method-ir
+  "Lowers the method of the given name, of the class of the given name,
+  from a class table into the IR."
+  [class-table class-name method-name]
+  (let [named  #(= %2 (str %1))
+        class  (some #(when (named (key %) class-name) (val %)) class-table)
+        method (some #(when (named (key %) method-name) (val %))
+                     (:methods class))]
+    (ir/class-method-ir class method)))
+
+(defn expressions
+  "Returns every expression evaluated by a method in the IR, including
+  subexpressions."
+  [method]
+  (for [block      (vals (:blocks method))
+        statement  (conj (:code block) (:exit block))
+        expression (ir/statement-expressions statement)
+        expression (tree-seq (constantly true) ir/subexpressions expression)]
+    expression))
+
+(defn calls
+  "Returns the names of the methods called by a method in the IR."
+  [method]
+  (set (for [expression (expressions method)
+             :when (= :call (:op expression))]
+         (str (:name expression)))))